@@ -0,0 +1,266 @@
+package org.conceptoriented.sc.rest;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only archive of deleted accounts. 
+ * 
+ * Each account is written as one JSON object per line (JSON lines). 
+ * Lines are queued by the caller and written by a background thread in batches so that callers never wait for file I/O.
+ * The current file is rolled over when it exceeds the maximum size or age, and rolled files are optionally gzipped.
+ * The whole archive (rolled and current files) can be read back as a lazy stream of lines.
+ */
+class AccountArchive {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AccountArchive.class.getName());
+
+	private static final DateTimeFormatter ROLL_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+	//
+	// Parameters
+	//
+	protected File dir = new File(".");
+	public void setDir(File dir) {
+		this.dir = dir;
+	}
+
+	protected String name = "repo"; // Current file is name.log and rolled files are name-timestamp.log(.gz)
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	protected long maxFileSize = 10L * 1024 * 1024;
+	public void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	protected Duration maxFileAge = Duration.ofDays(1);
+	public void setMaxFileAge(Duration maxFileAge) {
+		this.maxFileAge = maxFileAge;
+	}
+
+	protected boolean compress = true;
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	protected int batchSize = 100;
+	protected Duration flushPeriod = Duration.ofSeconds(1);
+
+	//
+	// Queue of lines to be written
+	//
+	protected BlockingQueue<String> queue;
+
+	protected AtomicLong droppedCount = new AtomicLong(); // Lines lost because the queue was full
+	public long getDroppedCount() {
+		return this.droppedCount.get();
+	}
+
+	// Add one line to the archive. The line is written asynchronously.
+	public boolean append(String json) {
+		if(this.queue.offer(json)) return true;
+		this.droppedCount.incrementAndGet();
+		LOG.warn("Archive queue is full. Line dropped: {}", json);
+		return false;
+	}
+
+	//
+	// Writer
+	//
+	private Thread writerThread;
+	private volatile boolean running;
+
+	private OutputStream out;
+	private long fileSize;
+	private Instant fileTime;
+
+	public File getFile() {
+		return new File(this.dir, this.name + ".log");
+	}
+
+	public synchronized void start() {
+		if(this.writerThread != null) return;
+		this.running = true;
+		this.writerThread = new Thread(this::run, "account-archive");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	// Stop the writer after all queued lines have been written
+	public synchronized void stop() {
+		if(this.writerThread == null) return;
+		this.running = false;
+		this.writerThread.interrupt();
+		try {
+			this.writerThread.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.writerThread = null;
+	}
+
+	protected void run() {
+		List<String> batch = new ArrayList<String>(this.batchSize);
+		while(this.running || !this.queue.isEmpty()) {
+			try {
+				String line = this.running ? this.queue.poll(this.flushPeriod.toMillis(), TimeUnit.MILLISECONDS) : this.queue.poll();
+				if(line != null) {
+					batch.add(line);
+					this.queue.drainTo(batch, this.batchSize - 1);
+				}
+				write(batch);
+				batch.clear();
+			}
+			catch(InterruptedException e) {
+				; // Stop requested. Write what remains in the queue.
+			}
+			catch(IOException e) {
+				LOG.error("Error writing archive. Lines lost: " + batch.size(), e);
+				batch.clear();
+				closeFile();
+			}
+		}
+		closeFile();
+	}
+
+	protected void write(List<String> batch) throws IOException {
+		if(batch.isEmpty() && isFull()) roll(); // Old file is rolled even if nothing is written
+
+		for(String line : batch) {
+			if(isFull()) roll();
+			if(this.out == null) openFile();
+
+			byte[] bytes = line.getBytes(StandardCharsets.UTF_8); // The file size is counted in bytes rather than characters
+			this.out.write(bytes);
+			this.out.write('\n');
+			this.fileSize += bytes.length + 1;
+		}
+		if(this.out != null) this.out.flush();
+	}
+
+	protected boolean isFull() {
+		if(this.out == null) return false;
+		return this.fileSize >= this.maxFileSize || Duration.between(this.fileTime, Instant.now()).compareTo(this.maxFileAge) >= 0;
+	}
+
+	private void openFile() throws IOException {
+		File file = getFile();
+		this.dir.mkdirs();
+		this.fileSize = file.length();
+		this.fileTime = this.fileSize > 0 ? Instant.ofEpochMilli(file.lastModified()) : Instant.now();
+		this.out = new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16);
+	}
+
+	// Move the current file to a new rolled file and (optionally) compress it
+	protected void roll() throws IOException {
+		closeFile();
+
+		File file = getFile();
+		if(!file.exists() || file.length() == 0) return;
+
+		String stamp = LocalDateTime.now().format(ROLL_FORMAT);
+		File rolled = null;
+		for(int i = 0; rolled == null || rolled.exists() || new File(rolled.getPath() + ".gz").exists(); i++) { // Sequence number for files rolled within one millisecond
+			rolled = new File(this.dir, String.format("%s-%s-%03d.log", this.name, stamp, i));
+		}
+		Files.move(file.toPath(), rolled.toPath());
+
+		if(!this.compress) return;
+
+		File gz = new File(rolled.getPath() + ".gz");
+		try (InputStream in = new FileInputStream(rolled);
+				OutputStream gzout = new GZIPOutputStream(new FileOutputStream(gz))) {
+			byte[] buffer = new byte[64 * 1024];
+			for(int n; (n = in.read(buffer)) > 0; ) {
+				gzout.write(buffer, 0, n);
+			}
+		}
+		Files.delete(rolled.toPath());
+	}
+
+	private void closeFile() {
+		if(this.out == null) return;
+		try {
+			this.out.close();
+		} catch (IOException e) {
+			LOG.error("Error closing archive.", e);
+		}
+		this.out = null;
+	}
+
+	//
+	// Reading
+	//
+
+	// Rolled files (in the order of their creation) followed by the current file
+	public List<File> getFiles() {
+		List<File> files = new ArrayList<File>();
+		File[] rolled = this.dir.listFiles((d, n) -> n.startsWith(this.name + "-") && (n.endsWith(".log") || n.endsWith(".log.gz")));
+		if(rolled != null) {
+			Arrays.sort(rolled);
+			files.addAll(Arrays.asList(rolled));
+		}
+		if(getFile().exists()) files.add(getFile());
+		return files;
+	}
+
+	// Lazily read all lines of the archive. The stream has to be closed.
+	public Stream<String> read() {
+		return getFiles().stream().flatMap(AccountArchive::readFile);
+	}
+
+	protected static Stream<String> readFile(File file) {
+		try {
+			InputStream in = new FileInputStream(file);
+			if(file.getName().endsWith(".gz")) in = new GZIPInputStream(in);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			return reader.lines().onClose(() -> {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public AccountArchive() {
+		this(10000);
+	}
+
+	public AccountArchive(int capacity) {
+		this.queue = new ArrayBlockingQueue<String>(capacity);
+	}
+
+}
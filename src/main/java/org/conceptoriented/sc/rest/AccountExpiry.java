@@ -0,0 +1,139 @@
+package org.conceptoriented.sc.rest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expiry of accounts in a background thread.
+ * 
+ * Each registered account has a deadline which is the earliest of its inactivity timeout and its maximum age.
+ * Deadlines are stored in a delay queue so that each check looks only at accounts which are due.
+ * Since accesses are not reported to this queue (request threads must not pay for it), a due account is checked again 
+ * and re-queued with its new deadline if it was accessed after its deadline was computed.
+ * The check is repeated under the write lock of the account because a request can access the account while the lock is awaited.
+ * If hibernation is enabled then inactive accounts are hibernated and only accounts exceeding their maximum age are deleted.
+ */
+class AccountExpiry {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AccountExpiry.class.getName());
+
+	private final Repository repository;
+
+	private final DelayQueue<Deadline> deadlines = new DelayQueue<Deadline>();
+
+	private ScheduledExecutorService scheduler;
+
+	// (Re-)schedule the account. Previously queued deadlines of this account become obsolete.
+	public void register(Account account) {
+		schedule(account, getDeadline(account));
+	}
+
+	protected void schedule(Account account, Instant time) {
+		Deadline deadline = new Deadline(account, time);
+		account.expiryDeadline = deadline;
+		this.deadlines.add(deadline);
+	}
+
+	// The earliest time when the account has to be expired given its current access time
+	protected Instant getDeadline(Account account) {
+		Instant old = account.getCreationTime().plus(this.repository.accountAge);
+		if(account.isHibernated()) return old; // Inactivity has been already processed
+		Instant inactive = account.getAccessTime().plus(this.repository.accountTimeout);
+		return inactive.isBefore(old) ? inactive : old;
+	}
+
+	// Process all accounts with passed deadlines
+	public int expire() {
+		int count = 0;
+		Deadline deadline;
+		while((deadline = this.deadlines.poll()) != null) {
+			Account acc = deadline.account;
+			if(acc.getDeletionTime() != null) continue; // Already deleted by other means
+			if(acc.expiryDeadline != deadline) continue; // Re-scheduled
+
+			Instant time = getDeadline(acc);
+			if(time.isAfter(Instant.now())) { // Accessed after the deadline was computed
+				schedule(acc, time);
+				continue;
+			}
+
+			// Requests hold the lock of the account while they use it, so it is checked again under the lock
+			Lock lock = this.repository.locks.write(acc);
+			try {
+				if(acc.getDeletionTime() != null) continue;
+				time = getDeadline(acc);
+				if(time.isAfter(Instant.now())) { // Accessed while waiting for the lock
+					schedule(acc, time);
+					continue;
+				}
+
+				boolean tooOld = !acc.getCreationTime().plus(this.repository.accountAge).isAfter(Instant.now());
+				if(!tooOld && this.repository.hibernation.hibernate(acc)) { // Inactive account is kept on disk until its maximum age
+					schedule(acc, getDeadline(acc));
+					continue;
+				}
+				this.repository.expireAccount(acc);
+				count++;
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		return count;
+	}
+
+	public synchronized void start(Duration period) {
+		if(this.scheduler != null) return;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "account-expiry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long millis = period.toMillis();
+		this.scheduler.scheduleWithFixedDelay(this::expire, millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if(this.scheduler == null) return;
+		this.scheduler.shutdownNow();
+		this.scheduler = null;
+	}
+
+	public AccountExpiry(Repository repository) {
+		this.repository = repository;
+	}
+
+	static class Deadline implements Delayed {
+		final Account account;
+		final Instant time;
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(Duration.between(Instant.now(), this.time).toMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			if(other instanceof Deadline) return this.time.compareTo(((Deadline) other).time);
+			return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+		}
+
+		Deadline(Account account, Instant time) {
+			this.account = account;
+			this.time = time;
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+package org.conceptoriented.sc.rest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.conceptoriented.sc.core.*;
+
+/**
+ * Hibernation of accounts to local disk. 
+ * 
+ * A hibernated account remains registered (with its id, name, session and statistics) but its schemas and assets are written 
+ * to a file and released from memory. The account is rehydrated when it is accessed next time.
+ * Accounts are hibernated when they are inactive longer than the account timeout or, in the order of their last access, 
+ * when the estimated memory of all resident accounts exceeds the heap budget. Hibernation and rehydration hold the write lock of the account. Loaded classes remain in memory and are still counted.
+ * Snapshots store the content of hibernated accounts and restore all accounts as resident, so files of accounts which are not hibernated are deleted on start.
+ */
+class AccountHibernation {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AccountHibernation.class.getName());
+
+	private final Repository repository;
+
+	//
+	// Parameters
+	//
+	protected File dir; // Hibernation is disabled if null
+	public boolean isEnabled() {
+		return this.dir != null;
+	}
+	public void setDir(File dir) {
+		this.dir = dir;
+	}
+
+	protected long heapBudget = 0; // Maximum estimated memory of all resident accounts (0 means no limit)
+	public void setHeapBudget(long heapBudget) {
+		this.heapBudget = heapBudget;
+	}
+
+	protected Duration period = Duration.ofSeconds(5); // How frequently the heap budget is checked
+
+	public File getFile(Account account) {
+		return new File(this.dir, account.getId() + ".bin");
+	}
+
+	//
+	// Hibernate and rehydrate
+	//
+
+	// Write schemas and assets of the account to disk and release them
+	public boolean hibernate(Account account) throws IOException {
+		if(!isEnabled()) return false;
+		Lock lock = this.repository.locks.write(account);
+		try {
+			if(account.isHibernated() || account.getDeletionTime() != null) return false;
+
+			this.dir.mkdirs();
+			File file = getFile(account);
+			File tmp = new File(file.getPath() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+				AccountSerializer.writeResidentContent(out, this.repository, account);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			for(Schema schema : this.repository.getSchemasForAccount(account.getId())) {
+				this.repository.deleteSchema(schema);
+			}
+			this.repository.deleteAssets(account);
+			account.setHibernated(true);
+		}
+		finally {
+			lock.unlock();
+		}
+		LOG.info("Account hibernated. Account: {}", account.getId());
+		return true;
+	}
+
+	// Restore schemas and assets of a hibernated account
+	public boolean rehydrate(Account account) throws IOException {
+		Lock lock = this.repository.locks.write(account);
+		try {
+			if(!account.isHibernated()) return false;
+
+			File file = getFile(account);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+				AccountSerializer.readContent(in, this.repository, account);
+			}
+			account.setHibernated(false);
+			if(!file.delete()) {
+				LOG.warn("Cannot delete hibernation file: {}", file);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		LOG.info("Account rehydrated. Account: {}", account.getId());
+		return true;
+	}
+
+	// Content of a hibernated account in the format of AccountSerializer.writeContent
+	public byte[] readContent(Account account) throws IOException {
+		return Files.readAllBytes(getFile(account).toPath());
+	}
+
+	// Delete files which do not belong to hibernated accounts (e.g., left from before the repository was restored)
+	public void clear() {
+		if(!isEnabled()) return;
+		File[] files = this.dir.listFiles((d, name) -> name.endsWith(".bin") || name.endsWith(".bin.tmp"));
+		if(files == null) return;
+		for(File file : files) {
+			Account account = null;
+			if(file.getName().endsWith(".bin")) {
+				try {
+					account = this.repository.accounts.get(UUID.fromString(file.getName().replace(".bin", "")));
+				}
+				catch(IllegalArgumentException e) {} // Not an account file
+			}
+			if(account != null && account.isHibernated()) continue;
+			if(!file.delete()) {
+				LOG.warn("Cannot delete hibernation file: {}", file);
+			}
+		}
+	}
+
+	public void delete(Account account) {
+		if(!isEnabled()) return;
+		Lock lock = this.repository.locks.write(account);
+		try {
+			File file = getFile(account);
+			if(file.exists() && !file.delete()) {
+				LOG.warn("Cannot delete hibernation file: {}", file);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	//
+	// Heap budget
+	//
+
+	// Hibernate least recently accessed accounts until resident accounts fit into the heap budget
+	public int evict() {
+		if(!isEnabled() || this.heapBudget <= 0) return 0;
+
+		List<Account> accounts = this.repository.getAccounts();
+		long total = 0;
+		for(Account acc : accounts) {
+			total += this.repository.getFootprint(acc);
+		}
+		if(total <= this.heapBudget) return 0;
+
+		List<Account> resident = accounts.stream().filter(x -> !x.isHibernated()).collect(Collectors.<Account>toList());
+		resident.sort(Comparator.comparing(Account::getAccessTime)); // Least recently used first
+
+		int count = 0;
+		for(Account acc : resident) {
+			if(total <= this.heapBudget) break;
+			long footprint = this.repository.getFootprint(acc);
+			try {
+				if(hibernate(acc)) {
+					total -= footprint - this.repository.getFootprint(acc);
+					count++;
+				}
+			}
+			catch(Exception e) {
+				LOG.error("Error hibernating account: " + acc.getId(), e);
+			}
+		}
+		return count;
+	}
+
+	private ScheduledExecutorService scheduler;
+
+	public synchronized void start() {
+		if(!isEnabled() || this.heapBudget <= 0 || this.scheduler != null) return;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "account-hibernation");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long millis = this.period.toMillis();
+		this.scheduler.scheduleWithFixedDelay(this::evict, millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if(this.scheduler == null) return;
+		this.scheduler.shutdownNow();
+		this.scheduler = null;
+	}
+
+	public AccountHibernation(Repository repository) {
+		this.repository = repository;
+	}
+
+}
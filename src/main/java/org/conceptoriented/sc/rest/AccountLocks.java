@@ -0,0 +1,87 @@
+package org.conceptoriented.sc.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read/write locks of accounts.
+ * 
+ * All operations reading schemas or data of an account take its read lock and can run in parallel. 
+ * All operations changing schemas or data (including evaluation, hibernation and restore) take its write lock and are exclusive.
+ * Each account has its own lock so that a long operation (e.g., evaluation) in one account never blocks other accounts.
+ * The time spent waiting for locks is measured.
+ */
+class AccountLocks {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AccountLocks.class.getName());
+
+	protected long slowWait = TimeUnit.SECONDS.toNanos(1); // Waits longer than this are logged
+
+	//
+	// Statistics
+	//
+	protected final LongAdder readCount = new LongAdder();
+	public long getReadCount() {
+		return readCount.sum();
+	}
+	protected final LongAdder readWait = new LongAdder(); // Nanoseconds
+	public long getReadWait() {
+		return readWait.sum();
+	}
+	protected final LongAdder writeCount = new LongAdder();
+	public long getWriteCount() {
+		return writeCount.sum();
+	}
+	protected final LongAdder writeWait = new LongAdder(); // Nanoseconds
+	public long getWriteWait() {
+		return writeWait.sum();
+	}
+	protected final AtomicLong maxWait = new AtomicLong(); // Nanoseconds
+	public long getMaxWait() {
+		return maxWait.get();
+	}
+
+	// Acquire the read lock of the account. It has to be released by the caller.
+	public Lock read(Account account) {
+		Lock lock = account.lock.readLock();
+		long wait = acquire(lock);
+		this.readCount.increment();
+		this.readWait.add(wait);
+		measure(account, wait, "read");
+		return lock;
+	}
+
+	// Acquire the write lock of the account. It has to be released by the caller.
+	public Lock write(Account account) {
+		Lock lock = account.lock.writeLock();
+		long wait = acquire(lock);
+		this.writeCount.increment();
+		this.writeWait.add(wait);
+		measure(account, wait, "write");
+		return lock;
+	}
+
+	private long acquire(Lock lock) {
+		if(lock.tryLock()) return 0; // No contention
+		long start = System.nanoTime();
+		lock.lock();
+		return System.nanoTime() - start;
+	}
+
+	private void measure(Account account, long wait, String mode) {
+		if(wait == 0) return;
+		this.maxWait.accumulateAndGet(wait, Math::max);
+		if(wait > this.slowWait) {
+			LOG.warn("Slow {} lock. Account: {}, Wait: {} ms", mode, account.getId(), TimeUnit.NANOSECONDS.toMillis(wait));
+		}
+	}
+
+	public AccountLocks() {
+	}
+
+}
@@ -0,0 +1,385 @@
+package org.conceptoriented.sc.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.conceptoriented.sc.core.*;
+
+/**
+ * Binary serialization of one account with its statistics, assets, schemas and table data.
+ * 
+ * Schema elements are stored in their json representation and re-created from json by the schema. 
+ * Table data is stored as typed binary values only for non-derived columns. Derived columns are re-computed after restore.
+ */
+class AccountSerializer {
+
+	// Value tags
+	static final byte NULL = 0;
+	static final byte DOUBLE = 1;
+	static final byte LONG = 2;
+	static final byte INTEGER = 3;
+	static final byte BOOLEAN = 4;
+	static final byte STRING = 5;
+
+	// Number of records appended to a table at once during restore
+	static final int APPEND_BATCH = 1000;
+
+	//
+	// Account
+	//
+
+	public static byte[] toBytes(Repository repository, Account account) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		Lock lock = repository.locks.read(account); // Log sequence is consistent with content, and content is not hibernated or rehydrated while being written
+		try {
+			writeAccount(out, account);
+			writeContent(out, repository, account);
+		}
+		finally {
+			lock.unlock();
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	// Create the account and restore it with its content in the repository
+	public static Account fromBytes(Repository repository, byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		Account account = readAccount(in, repository);
+		repository.addAccount(account);
+		readContent(in, repository, account);
+		return account;
+	}
+
+	public static void writeAccount(DataOutput out, Account account) throws IOException {
+		writeUuid(out, account.getId());
+		writeString(out, account.getName());
+		writeString(out, account.getSession());
+
+		writeInstant(out, account.getCreationTime());
+		writeInstant(out, account.getAccessTime());
+		writeInstant(out, account.getChangeTime());
+		out.writeLong(account.getLogSequence());
+
+		for(int stat : getStatistics(account)) {
+			out.writeInt(stat);
+		}
+	}
+
+	public static Account readAccount(DataInput in, Repository repository) throws IOException {
+		UUID id = readUuid(in);
+		String name = readString(in);
+		String session = readString(in);
+
+		Account account = new Account(repository, id, readInstant(in), name);
+		account.setAccessTime(readInstant(in));
+		account.setChangeTime(readInstant(in));
+		account.setLogSequence(in.readLong());
+		account.setSession(session);
+
+		int[] stats = getStatistics(account);
+		for(int i = 0; i < stats.length; i++) {
+			stats[i] = in.readInt();
+		}
+		setStatistics(account, stats);
+
+		return account;
+	}
+
+	// Statistics are stored as int values
+	protected static int[] getStatistics(Account account) {
+		LongAdder[] adders = account.getStatistics();
+		int[] stats = new int[adders.length];
+		for(int i = 0; i < adders.length; i++) {
+			stats[i] = (int) Math.min(adders[i].sum(), Integer.MAX_VALUE);
+		}
+		return stats;
+	}
+	protected static void setStatistics(Account account, int[] stats) {
+		LongAdder[] adders = account.getStatistics();
+		for(int i = 0; i < adders.length; i++) {
+			adders[i].reset();
+			adders[i].add(stats[i]);
+		}
+	}
+
+	//
+	// Content of an account: assets and schemas
+	//
+
+	public static void writeContent(DataOutput out, Repository repository, Account account) throws IOException {
+		if(account.isHibernated()) {
+			out.write(repository.hibernation.readContent(account)); // Content is already stored in this format
+			return;
+		}
+		writeResidentContent(out, repository, account);
+	}
+
+	protected static void writeResidentContent(DataOutput out, Repository repository, Account account) throws IOException {
+		List<Asset> assets = repository.getAssetsForAccount(account.getId());
+		out.writeInt(assets.size());
+		for(Asset asset : assets) {
+			writeUuid(out, asset.getId());
+			writeString(out, asset.getName());
+			ByteBuffer data = asset.getData();
+			out.writeInt(data != null ? data.remaining() : -1);
+			if(data != null) {
+				byte[] buffer = new byte[Math.min(data.remaining(), 1 << 16)];
+				while(data.hasRemaining()) {
+					int n = Math.min(buffer.length, data.remaining());
+					data.get(buffer, 0, n);
+					out.write(buffer, 0, n);
+				}
+			}
+		}
+
+		List<Schema> schemas = repository.getSchemasForAccount(account.getId());
+		out.writeInt(schemas.size());
+		for(Schema schema : schemas) {
+			writeSchema(out, schema);
+		}
+	}
+
+	public static void readContent(DataInput in, Repository repository, Account account) throws IOException {
+		int assetCount = in.readInt();
+		for(int i = 0; i < assetCount; i++) {
+			Asset asset = new Asset(readUuid(in));
+			asset.setName(readString(in));
+			int length = in.readInt();
+			if(length >= 0) {
+				byte[] data = new byte[length];
+				in.readFully(data);
+				asset.setBlob(repository.getAssetStore().put(data)); // Shared with other assets having the same content
+			}
+			asset.setAccount(account);
+			repository.addAsset(account, asset);
+		}
+
+		int schemaCount = in.readInt();
+		for(int i = 0; i < schemaCount; i++) {
+			Schema schema = readSchema(in);
+			repository.addSchema(account, schema);
+		}
+	}
+
+	//
+	// Schema
+	//
+
+	public static void writeSchema(DataOutput out, Schema schema) throws IOException {
+		writeString(out, schema.toJson());
+
+		List<Table> tables = schema.getTables().stream().filter(x -> !x.isPrimitive()).collect(Collectors.<Table>toList());
+
+		// Structure
+		out.writeInt(tables.size());
+		for(Table table : tables) {
+			writeString(out, table.toJson());
+		}
+		List<Column> columns = new ArrayList<Column>();
+		for(Table table : tables) {
+			columns.addAll(schema.getColumns(table.getName()));
+		}
+		out.writeInt(columns.size());
+		for(Column column : columns) {
+			writeString(out, column.toJson());
+		}
+
+		// Data
+		out.writeInt(tables.size());
+		for(Table table : tables) {
+			List<String> names = schema.getColumns(table.getName()).stream().filter(x -> !x.isDerived()).map(x -> x.getName()).collect(Collectors.<String>toList());
+			writeString(out, table.getName());
+			out.writeInt(names.size());
+			for(String name : names) {
+				writeString(out, name);
+			}
+
+			List<Record> records = table.read(null);
+			out.writeLong(records.size());
+			for(Record record : records) {
+				for(String name : names) {
+					writeValue(out, record.get(name));
+				}
+			}
+		}
+	}
+
+	public static Schema readSchema(DataInput in) throws IOException {
+		Schema schema = readSchema(in, json -> json);
+		schema.evaluate(); // Derived columns are not stored
+		return schema;
+	}
+
+	// Read a copy of the schema where all elements get new ids so that it can be added to the repository many times. Derived columns are not evaluated.
+	public static Schema copySchema(DataInput in) throws IOException {
+		Map<String, String> ids = new HashMap<String, String>(); // Old id to new id for all elements of this copy
+		return readSchema(in, json -> {
+			Matcher matcher = UUID_PATTERN.matcher(json);
+			StringBuffer sb = new StringBuffer(json.length());
+			while(matcher.find()) {
+				matcher.appendReplacement(sb, ids.computeIfAbsent(matcher.group().toLowerCase(), k -> UUID.randomUUID().toString()));
+			}
+			matcher.appendTail(sb);
+			return sb.toString();
+		});
+	}
+
+	private static final Pattern UUID_PATTERN = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+	// Elements are created from their json after it has been transformed
+	protected static Schema readSchema(DataInput in, UnaryOperator<String> transform) throws IOException {
+		Schema schema;
+		try {
+			schema = Schema.fromJson(transform.apply(readString(in)));
+
+			// Structure
+			int tableCount = in.readInt();
+			for(int i = 0; i < tableCount; i++) {
+				schema.createTableFromJson(transform.apply(readString(in)));
+			}
+			int columnCount = in.readInt();
+			for(int i = 0; i < columnCount; i++) {
+				schema.createColumnFromJson(transform.apply(readString(in)));
+			}
+		}
+		catch(IOException e) {
+			throw e;
+		}
+		catch(Exception e) {
+			throw new IOException("Error restoring schema structure.", e);
+		}
+
+		// Data
+		int dataCount = in.readInt();
+		for(int i = 0; i < dataCount; i++) {
+			Table table = schema.getTable(readString(in));
+			String[] names = new String[in.readInt()];
+			for(int j = 0; j < names.length; j++) {
+				names[j] = readString(in);
+			}
+
+			long rowCount = in.readLong();
+			List<Record> records = new ArrayList<Record>(APPEND_BATCH);
+			for(long row = 0; row < rowCount; row++) {
+				Record record = new Record();
+				for(String name : names) {
+					record.set(name, readValue(in));
+				}
+				records.add(record);
+				if(records.size() == APPEND_BATCH) {
+					table.append(records, null);
+					records.clear();
+				}
+			}
+			if(!records.isEmpty()) table.append(records, null);
+		}
+
+		schema.translate();
+		return schema;
+	}
+
+	//
+	// Values
+	//
+
+	public static void writeValue(DataOutput out, Object value) throws IOException {
+		if(value == null) {
+			out.writeByte(NULL);
+		}
+		else if(value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		}
+		else if(value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		}
+		else if(value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		}
+		else if(value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		}
+		else {
+			out.writeByte(STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	public static Object readValue(DataInput in) throws IOException {
+		byte tag = in.readByte();
+		switch(tag) {
+		case NULL: return null;
+		case DOUBLE: return in.readDouble();
+		case LONG: return in.readLong();
+		case INTEGER: return in.readInt();
+		case BOOLEAN: return in.readBoolean();
+		case STRING: return readString(in);
+		default: throw new IOException("Unknown value tag: " + tag);
+		}
+	}
+
+	// Unlike writeUTF, there is no 64k limit on the length
+	public static void writeString(DataOutput out, String value) throws IOException {
+		if(value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static void writeUuid(DataOutput out, UUID value) throws IOException {
+		out.writeLong(value.getMostSignificantBits());
+		out.writeLong(value.getLeastSignificantBits());
+	}
+
+	public static UUID readUuid(DataInput in) throws IOException {
+		return new UUID(in.readLong(), in.readLong());
+	}
+
+	public static void writeInstant(DataOutput out, Instant value) throws IOException {
+		out.writeBoolean(value != null);
+		if(value == null) return;
+		out.writeLong(value.getEpochSecond());
+		out.writeInt(value.getNano());
+	}
+
+	public static Instant readInstant(DataInput in) throws IOException {
+		if(!in.readBoolean()) return null;
+		return Instant.ofEpochSecond(in.readLong(), in.readInt());
+	}
+
+}
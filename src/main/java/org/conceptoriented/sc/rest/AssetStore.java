@@ -0,0 +1,238 @@
+package org.conceptoriented.sc.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content-addressed store of asset data shared by all accounts.
+ * 
+ * Each distinct content is stored once under its SHA-256 hash as a file in the store directory and accessed through a read-only memory mapping. 
+ * Assets with the same content (also in different accounts) reference the same blob, and the blob is deleted when its last reference is released.
+ * If no directory is specified then blobs are kept in heap but are still shared.
+ */
+class AssetStore {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AssetStore.class.getName());
+
+	//
+	// Parameters
+	//
+	protected File dir; // Blobs are kept in heap if null
+	public File getDir() {
+		return this.dir;
+	}
+	public void setDir(File dir) {
+		this.dir = dir;
+	}
+
+	public File getFile(String hash) {
+		return new File(this.dir, hash + ".blob");
+	}
+
+	//
+	// Blobs
+	//
+	protected Map<String, Blob> blobs = new ConcurrentHashMap<String, Blob>();
+
+	public Blob getBlob(String hash) {
+		return this.blobs.get(hash);
+	}
+	public int getBlobCount() {
+		return this.blobs.size();
+	}
+
+	// Store the content and return its blob with one reference owned by the caller
+	public Blob put(InputStream in) throws IOException {
+		MessageDigest digest = newDigest();
+
+		File tmp = null;
+		ByteArrayOutputStream bytes = null;
+		OutputStream out;
+		if(this.dir != null) {
+			this.dir.mkdirs();
+			tmp = new File(this.dir, UUID.randomUUID() + ".tmp");
+			out = new FileOutputStream(tmp);
+		}
+		else {
+			bytes = new ByteArrayOutputStream();
+			out = bytes;
+		}
+
+		long size;
+		try (OutputStream dout = new DigestOutputStream(out, digest)) {
+			size = copy(in, dout);
+		}
+		catch(IOException e) {
+			if(tmp != null) tmp.delete();
+			throw e;
+		}
+		String hash = toHex(digest.digest());
+
+		synchronized(this) {
+			Blob blob = this.blobs.get(hash);
+			if(blob != null) { // Same content has been already stored
+				if(tmp != null) tmp.delete();
+				blob.references++;
+				return blob;
+			}
+
+			ByteBuffer data;
+			if(tmp != null) {
+				File file = getFile(hash);
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				data = map(file, size);
+			}
+			else {
+				data = ByteBuffer.wrap(bytes.toByteArray());
+			}
+
+			blob = new Blob(hash, size, data);
+			blob.references = 1;
+			this.blobs.put(hash, blob);
+			return blob;
+		}
+	}
+	public Blob put(byte[] data) throws IOException {
+		return put(new ByteArrayInputStream(data));
+	}
+
+	// Release one reference to the blob and delete it if it is not referenced anymore
+	public synchronized void release(Blob blob) {
+		if(blob == null || --blob.references > 0) return;
+		this.blobs.remove(blob.getHash(), blob);
+		if(this.dir != null) {
+			File file = getFile(blob.getHash());
+			if(file.exists() && !file.delete()) { // Can fail on some platforms while the file is mapped
+				LOG.warn("Cannot delete asset file: {}", file);
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	// Delete all files left from a previous run. Blobs are restored from snapshots.
+	public void clear() {
+		if(this.dir == null) return;
+		File[] files = this.dir.listFiles((d, name) -> name.endsWith(".blob") || name.endsWith(".tmp"));
+		if(files == null) return;
+		for(File file : files) {
+			if(!this.blobs.containsKey(file.getName().replace(".blob", "")) && !file.delete()) {
+				LOG.warn("Cannot delete asset file: {}", file);
+			}
+		}
+	}
+
+	private static ByteBuffer map(File file, long size) throws IOException {
+		if(size > Integer.MAX_VALUE) {
+			throw new IOException("Asset is too large: " + size);
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // Mapping remains valid after the channel is closed
+		}
+	}
+
+	private static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		long size = 0;
+		int n;
+		while((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+			size += n;
+		}
+		return size;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	// Stream reading the buffer without copying it into heap
+	public static InputStream newInputStream(ByteBuffer buffer) {
+		ByteBuffer data = buffer.duplicate();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return data.hasRemaining() ? (data.get() & 0xFF) : -1;
+			}
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if(len == 0) return 0;
+				if(!data.hasRemaining()) return -1;
+				len = Math.min(len, data.remaining());
+				data.get(b, off, len);
+				return len;
+			}
+			@Override
+			public long skip(long n) {
+				int k = (int) Math.max(0, Math.min(n, data.remaining()));
+				data.position(data.position() + k);
+				return k;
+			}
+			@Override
+			public int available() {
+				return data.remaining();
+			}
+		};
+	}
+
+	/**
+	 * Immutable content of one or more assets.
+	 */
+	static class Blob {
+
+		private final String hash;
+		public String getHash() {
+			return hash;
+		}
+
+		private final long size;
+		public long getSize() {
+			return size;
+		}
+
+		private final ByteBuffer data;
+		public ByteBuffer getData() { // Independent read-only view of the content
+			return data.asReadOnlyBuffer();
+		}
+
+		int references; // Guarded by the store
+
+		Blob(String hash, long size, ByteBuffer data) {
+			this.hash = hash;
+			this.size = size;
+			this.data = data;
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package org.conceptoriented.sc.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+import org.conceptoriented.sc.core.*;
+
+/**
+ * State of a schema at its last evaluation used to find what has to be evaluated next time.
+ *
+ * It stores the row range of each table and the definition (json) of each column.
+ * Comparing them with the current schema gives the tables with new rows, the rewritten (emptied) tables and the new or edited columns.
+ * A derived column is dirty if its definition was edited, if its input table got rows, if a LINK column's output table changed,
+ * or if any of its dependencies is dirty or belongs to a changed table. Other columns keep their values.
+ * A dirty LINK column can append rows to its output table, so the derived columns of that table are also dirty and are evaluated after the link
+ * (the rows appended during evaluation are in the state captured afterwards).
+ * A dirty CALC column whose definition was not edited and whose table only got new rows has to be evaluated only for the new rows
+ * if its dirty dependencies also changed only in these rows.
+ * No changes are detected in the absence of a previous state, and then all columns are dirty.
+ */
+class ChangeTracker {
+
+	protected Map<UUID, long[]> ranges = new HashMap<UUID, long[]>();
+
+	protected Map<UUID, String> definitions = new HashMap<UUID, String>();
+
+	// State of the schema after it has been evaluated
+	public static ChangeTracker capture(Schema schema) {
+		ChangeTracker tracker = new ChangeTracker();
+		for(Table table : schema.getTables()) {
+			if(table.isPrimitive()) continue;
+			Range range = table.getIdRange();
+			tracker.ranges.put(table.getId(), new long[] { range.start, range.end });
+		}
+		for(Column column : schema.getColumns()) {
+			tracker.definitions.put(column.getId(), column.toJson());
+		}
+		return tracker;
+	}
+
+	// Find changes of the schema since the state was captured. The tracker can be null if the state is unknown.
+	public static Plan plan(Schema schema, ChangeTracker tracker) {
+		Plan plan = new Plan();
+		plan.full = tracker == null;
+
+		for(Table table : schema.getTables()) {
+			if(table.isPrimitive()) continue;
+			Range range = table.getIdRange();
+			long[] old = tracker != null ? tracker.ranges.get(table.getId()) : null;
+			if(old == null || range.start != old[0] || range.end < old[1]) {
+				plan.rewritten.add(table);
+			}
+			else if(range.end > old[1]) {
+				plan.appended.put(table, old[1]);
+			}
+		}
+
+		for(Column column : schema.getColumns()) {
+			if(column.getKind() != DcColumnKind.LINK || column.getOutput() == null) continue;
+			plan.links.computeIfAbsent(column.getOutput(), k -> new ArrayList<Column>()).add(column);
+		}
+
+		Map<Column, Boolean> visited = new HashMap<Column, Boolean>();
+		for(Column column : schema.getColumns()) {
+			plan.isDirty(column, tracker, visited);
+		}
+		plan.skipped = (int) schema.getColumns().stream().filter(x -> x.isDerived() && !plan.dirty.contains(x)).count();
+		return plan;
+	}
+
+	/**
+	 * Columns which have to be evaluated and the changes which make them dirty.
+	 */
+	public static class Plan {
+
+		protected boolean full; // No previous state
+
+		protected Set<Table> rewritten = new HashSet<Table>(); // Tables which are new or whose rows were deleted
+
+		protected Map<Table, Long> appended = new LinkedHashMap<Table, Long>(); // Tables with new rows and the first new row id
+
+		protected List<Column> dirty = new ArrayList<Column>(); // Derived columns to be evaluated in the order of their dependencies
+
+		protected int skipped; // Derived columns which are not evaluated
+
+		protected Map<Table, List<Column>> links = new HashMap<Table, List<Column>>(); // LINK columns by their output table
+
+		protected Map<Column, Long> firstRows = new HashMap<Column, Long>(); // Columns changed only starting from some row
+
+		protected Set<Column> incremental = ConcurrentHashMap.newKeySet(); // Columns evaluated only for changed rows
+
+		// First row to be evaluated or the minimum value if all rows have to be evaluated
+		public long getFirstRow(Column column) {
+			return this.firstRows.getOrDefault(column, Long.MIN_VALUE);
+		}
+		public void setIncremental(Column column) {
+			this.incremental.add(column);
+		}
+
+		protected boolean parallel; // Independent columns were evaluated concurrently
+
+		protected long nanos; // Duration of the evaluation
+		public void setDuration(boolean parallel, long nanos) {
+			this.parallel = parallel;
+			this.nanos = nanos;
+		}
+
+		public List<Column> getDirty() {
+			return dirty;
+		}
+
+		public boolean isChanged(Table table) {
+			return table != null && (rewritten.contains(table) || appended.containsKey(table));
+		}
+
+		// Dependencies are visited first. A column in a dependency cycle is dirty since it cannot be translated anyway.
+		protected boolean isDirty(Column column, ChangeTracker tracker, Map<Column, Boolean> visited) {
+			Boolean result = visited.get(column);
+			if(result != null) return result;
+			visited.put(column, true);
+
+			Long appendedFrom = column.getInput() != null ? appended.get(column.getInput()) : null;
+			if(!column.isDerived()) {
+				result = isChanged(column.getInput());
+				if(appendedFrom != null) firstRows.put(column, appendedFrom);
+			}
+			else {
+				boolean edited = full || !column.toJson().equals(tracker.definitions.get(column.getId()));
+				result = edited;
+				result |= isChanged(column.getInput());
+				result |= column.getKind() == DcColumnKind.LINK && isChanged(column.getOutput());
+
+				boolean rowLocal = column.getKind() == DcColumnKind.CALC && !edited && appendedFrom != null; // New rows do not change old rows
+
+				for(Column link : links.getOrDefault(column.getInput(), Collections.<Column>emptyList())) {
+					if(link == column || !isDirty(link, tracker, visited)) continue;
+					result = true; // Rows which will be appended by the link
+					rowLocal = false;
+				}
+				List<Column> dependencies = column.getDependencies();
+				if(dependencies != null) {
+					for(Column dependency : dependencies) {
+						boolean changed = isDirty(dependency, tracker, visited);
+						result |= changed;
+						if(changed && rowLocal && (dependency.getInput() != column.getInput() || !appendedFrom.equals(firstRows.get(dependency)))) rowLocal = false;
+					}
+				}
+				if(result) dirty.add(column);
+				if(result && rowLocal) firstRows.put(column, appendedFrom);
+			}
+
+			visited.put(column, result);
+			return result;
+		}
+
+		public String toJson() {
+			String jevaluated = "";
+			for(Column column : dirty) {
+				if(!jevaluated.isEmpty()) jevaluated += ", ";
+				jevaluated += JSONObject.quote(column.getInput().getName() + "." + column.getName());
+			}
+			String jappended = "";
+			for(Map.Entry<Table, Long> entry : appended.entrySet()) {
+				if(!jappended.isEmpty()) jappended += ", ";
+				jappended += JSONObject.quote(entry.getKey().getName()) + ": " + (entry.getKey().getIdRange().end - entry.getValue());
+			}
+			String jincremental = "";
+			for(Column column : dirty) {
+				if(!incremental.contains(column)) continue;
+				if(!jincremental.isEmpty()) jincremental += ", ";
+				jincremental += JSONObject.quote(column.getInput().getName() + "." + column.getName());
+			}
+			return "\"full\": " + full + ", \"evaluated\": [" + jevaluated + "], \"incremental\": [" + jincremental + "], \"skipped\": " + skipped + ", \"appended\": {" + jappended + "}, \"parallel\": " + parallel + ", \"seconds\": " + (nanos / 1e9);
+		}
+	}
+
+}
@@ -0,0 +1,365 @@
+package org.conceptoriented.sc.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.conceptoriented.sc.core.*;
+
+/**
+ * Columnar binary format of table data used for bulk load and export. All numbers are big-endian.
+ *
+ * <pre>
+ * stream  := magic header chunk* end
+ * magic   := "SCC1" (4 ASCII bytes)
+ * header  := int32 columnCount, (string name, int8 type) * columnCount
+ * chunk   := int32 rowCount (greater than 0), column * columnCount (in the order of the header)
+ * column  := bitmap, values
+ * bitmap  := ceil(rowCount / 8) bytes. Bit i (least significant bit first) is set if row i has a value and is clear if it is null.
+ * values  := float64 * rowCount (DOUBLE) | int64 * rowCount (LONG) | int32 * rowCount (INTEGER) | int8 * rowCount (BOOLEAN) | string * (number of set bits) (STRING)
+ * end     := int32 0
+ * string  := int32 byteLength, UTF-8 bytes
+ * </pre>
+ *
+ * Types are the value tags of AccountSerializer. Fixed width columns have a slot for every row (null slots are ignored) so that they are read and written as contiguous buffers.
+ * A reader can limit the number of rows of a chunk because the records of a chunk are allocated before its values are read.
+ */
+class ColumnarFormat {
+
+	static final byte[] MAGIC = { 'S', 'C', 'C', '1' };
+
+	// Limits protecting the server from malformed streams
+	static final int MAX_COLUMNS = 1 << 12;
+	static final int MAX_CHUNK_ROWS = 1 << 20;
+	static final int MAX_STRING_BYTES = 1 << 24;
+
+	// Type of the values of a column in the stream. Values of unknown or non-primitive types are written as strings.
+	public static byte getType(Column column) {
+		Table output = column.getOutput();
+		if(output == null || !output.isPrimitive()) return AccountSerializer.STRING;
+		switch(output.getName()) {
+		case "Double": return AccountSerializer.DOUBLE;
+		case "Long": return AccountSerializer.LONG;
+		case "Integer": return AccountSerializer.INTEGER;
+		case "Boolean": return AccountSerializer.BOOLEAN;
+		default: return AccountSerializer.STRING;
+		}
+	}
+
+	protected static int getWidth(byte type) {
+		switch(type) {
+		case AccountSerializer.DOUBLE: return 8;
+		case AccountSerializer.LONG: return 8;
+		case AccountSerializer.INTEGER: return 4;
+		case AccountSerializer.BOOLEAN: return 1;
+		case AccountSerializer.STRING: return 0; // Variable width
+		default: throw new IllegalArgumentException("Unknown column type: " + type);
+		}
+	}
+
+	/**
+	 * Decoder of a stream which returns one chunk of records at a time.
+	 */
+	public static class Reader {
+
+		protected DataInputStream in;
+
+		protected Recorder recorder;
+
+		protected int maxRows = MAX_CHUNK_ROWS;
+		public void setMaxRows(int maxRows) {
+			this.maxRows = Math.min(Math.max(1, maxRows), MAX_CHUNK_ROWS);
+		}
+
+		protected byte[] header; // Bytes of the header if recording
+
+		// Keep the bytes of the header and of the last chunk so that they can be stored without encoding the records again
+		public void setRecording(boolean recording) {
+			this.recorder.copy = recording ? new ByteArrayOutputStream() : null;
+		}
+
+		// Stream with the header and the last chunk as they were read
+		public byte[] getRecorded() throws IOException {
+			if(this.recorder.copy == null || this.header == null) throw new IllegalStateException("Not recording.");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.header.length + this.recorder.copy.size() + 4);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.write(this.header);
+			this.recorder.copy.writeTo(out);
+			out.writeInt(0);
+			return bytes.toByteArray();
+		}
+
+		protected String[] names;
+		public String[] getNames() {
+			return names;
+		}
+
+		protected byte[] types;
+		public byte[] getTypes() {
+			return types;
+		}
+
+		protected byte[] buffer = new byte[0]; // Reused for the values of fixed width columns
+
+		public void readHeader() throws IOException {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			for(int i = 0; i < MAGIC.length; i++) {
+				if(magic[i] != MAGIC[i]) throw new IOException("Not a columnar data stream.");
+			}
+
+			int count = in.readInt();
+			if(count <= 0 || count > MAX_COLUMNS) throw new IOException("Invalid number of columns: " + count);
+			names = new String[count];
+			types = new byte[count];
+			for(int i = 0; i < count; i++) {
+				names[i] = readString();
+				if(names[i] == null) throw new IOException("Column name is missing.");
+				types[i] = in.readByte();
+				getWidth(types[i]); // Validate
+			}
+
+			if(this.recorder.copy != null) {
+				this.header = this.recorder.copy.toByteArray();
+				this.recorder.copy.reset();
+			}
+		}
+
+		// Records of the next chunk or null at the end of the stream
+		public List<Record> readChunk() throws IOException {
+			if(this.recorder.copy != null) this.recorder.copy.reset();
+			int rowCount;
+			try {
+				rowCount = in.readInt();
+			}
+			catch(EOFException e) {
+				throw new IOException("Unexpected end of stream.", e);
+			}
+			if(rowCount == 0) return null;
+			if(rowCount < 0 || rowCount > MAX_CHUNK_ROWS) throw new IOException("Invalid number of rows in chunk: " + rowCount);
+			if(rowCount > this.maxRows) throw new IOException("Too many rows in chunk: " + rowCount + ", Maximum: " + this.maxRows);
+
+			List<Record> records = new ArrayList<Record>(rowCount);
+			for(int row = 0; row < rowCount; row++) {
+				records.add(new Record());
+			}
+
+			byte[] bitmap = new byte[(rowCount + 7) / 8];
+			for(int c = 0; c < names.length; c++) {
+				in.readFully(bitmap);
+				readColumn(names[c], types[c], bitmap, records);
+			}
+			return records;
+		}
+
+		protected void readColumn(String name, byte type, byte[] bitmap, List<Record> records) throws IOException {
+			int rowCount = records.size();
+
+			if(type == AccountSerializer.STRING) {
+				for(int row = 0; row < rowCount; row++) {
+					records.get(row).set(name, isSet(bitmap, row) ? readString() : null);
+				}
+				return;
+			}
+
+			// The whole column chunk is read at once and decoded without parsing
+			int length = rowCount * getWidth(type);
+			if(buffer.length < length) buffer = new byte[length];
+			in.readFully(buffer, 0, length);
+			ByteBuffer values = ByteBuffer.wrap(buffer, 0, length);
+
+			switch(type) {
+			case AccountSerializer.DOUBLE:
+				double[] doubles = new double[rowCount];
+				values.asDoubleBuffer().get(doubles);
+				for(int row = 0; row < rowCount; row++) {
+					records.get(row).set(name, isSet(bitmap, row) ? doubles[row] : null);
+				}
+				break;
+			case AccountSerializer.LONG:
+				long[] longs = new long[rowCount];
+				values.asLongBuffer().get(longs);
+				for(int row = 0; row < rowCount; row++) {
+					records.get(row).set(name, isSet(bitmap, row) ? longs[row] : null);
+				}
+				break;
+			case AccountSerializer.INTEGER:
+				int[] ints = new int[rowCount];
+				values.asIntBuffer().get(ints);
+				for(int row = 0; row < rowCount; row++) {
+					records.get(row).set(name, isSet(bitmap, row) ? ints[row] : null);
+				}
+				break;
+			case AccountSerializer.BOOLEAN:
+				for(int row = 0; row < rowCount; row++) {
+					records.get(row).set(name, isSet(bitmap, row) ? buffer[row] != 0 : null);
+				}
+				break;
+			}
+		}
+
+		protected String readString() throws IOException {
+			int length = in.readInt();
+			if(length < 0) return null;
+			if(length > MAX_STRING_BYTES) throw new IOException("String is too long: " + length);
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		public Reader(InputStream in) {
+			this.recorder = new Recorder(in);
+			this.in = new DataInputStream(this.recorder);
+		}
+	}
+
+	// Stream which copies the bytes read from it if recording
+	protected static class Recorder extends FilterInputStream {
+
+		protected ByteArrayOutputStream copy;
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0 && this.copy != null) this.copy.write(b);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n > 0 && this.copy != null) this.copy.write(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if(this.copy == null) return super.skip(n);
+			byte[] bytes = new byte[(int) Math.min(n, 1 << 16)];
+			int count = read(bytes, 0, bytes.length);
+			return Math.max(count, 0);
+		}
+
+		Recorder(InputStream in) {
+			super(in);
+		}
+	}
+
+	/**
+	 * Encoder of a stream which writes one chunk of records at a time.
+	 * Values of numeric columns which are not numbers are written as nulls.
+	 */
+	public static class Writer {
+
+		protected DataOutputStream out;
+
+		protected String[] names;
+
+		protected byte[] types;
+
+		protected ByteBuffer buffer = ByteBuffer.allocate(0); // Reused for the values of fixed width columns
+
+		public void writeHeader(String[] names, byte[] types) throws IOException {
+			this.names = names;
+			this.types = types;
+			out.write(MAGIC);
+			out.writeInt(names.length);
+			for(int i = 0; i < names.length; i++) {
+				AccountSerializer.writeString(out, names[i]);
+				out.writeByte(types[i]);
+			}
+		}
+
+		public void writeChunk(List<Record> records) throws IOException {
+			int rowCount = records.size();
+			if(rowCount == 0) return; // Zero rows mean the end of the stream
+			for(int from = 0; from < rowCount; from += MAX_CHUNK_ROWS) { // Chunks readable by the reader
+				List<Record> chunk = records.subList(from, Math.min(rowCount, from + MAX_CHUNK_ROWS));
+				out.writeInt(chunk.size());
+				for(int c = 0; c < names.length; c++) {
+					writeColumn(names[c], types[c], chunk);
+				}
+			}
+		}
+
+		protected void writeColumn(String name, byte type, List<Record> records) throws IOException {
+			int rowCount = records.size();
+
+			Object[] values = new Object[rowCount];
+			byte[] bitmap = new byte[(rowCount + 7) / 8];
+			for(int row = 0; row < rowCount; row++) {
+				Object value = records.get(row).get(name);
+				if(type != AccountSerializer.STRING && type != AccountSerializer.BOOLEAN && !(value instanceof Number)) value = null;
+				if(type == AccountSerializer.BOOLEAN && !(value instanceof Boolean)) value = null;
+				values[row] = value;
+				if(value != null) bitmap[row >> 3] |= 1 << (row & 7);
+			}
+			out.write(bitmap);
+
+			if(type == AccountSerializer.STRING) {
+				for(Object value : values) {
+					if(value != null) AccountSerializer.writeString(out, value.toString());
+				}
+				return;
+			}
+
+			// The whole column chunk is encoded in one buffer and written at once
+			int length = rowCount * getWidth(type);
+			if(buffer.capacity() < length) buffer = ByteBuffer.allocate(length);
+			buffer.clear();
+
+			switch(type) {
+			case AccountSerializer.DOUBLE:
+				double[] doubles = new double[rowCount];
+				for(int row = 0; row < rowCount; row++) {
+					if(values[row] != null) doubles[row] = ((Number) values[row]).doubleValue();
+				}
+				buffer.asDoubleBuffer().put(doubles);
+				break;
+			case AccountSerializer.LONG:
+				long[] longs = new long[rowCount];
+				for(int row = 0; row < rowCount; row++) {
+					if(values[row] != null) longs[row] = ((Number) values[row]).longValue();
+				}
+				buffer.asLongBuffer().put(longs);
+				break;
+			case AccountSerializer.INTEGER:
+				int[] ints = new int[rowCount];
+				for(int row = 0; row < rowCount; row++) {
+					if(values[row] != null) ints[row] = ((Number) values[row]).intValue();
+				}
+				buffer.asIntBuffer().put(ints);
+				break;
+			case AccountSerializer.BOOLEAN:
+				for(int row = 0; row < rowCount; row++) {
+					buffer.put(row, (byte) (Boolean.TRUE.equals(values[row]) ? 1 : 0));
+				}
+				break;
+			}
+			out.write(buffer.array(), 0, length);
+		}
+
+		public void writeEnd() throws IOException {
+			out.writeInt(0);
+			out.flush();
+		}
+
+		public Writer(OutputStream out) {
+			this.out = new DataOutputStream(out);
+		}
+	}
+
+	protected static boolean isSet(byte[] bitmap, int row) {
+		return (bitmap[row >> 3] & (1 << (row & 7))) != 0;
+	}
+
+}
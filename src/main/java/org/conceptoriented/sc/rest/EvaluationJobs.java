@@ -0,0 +1,222 @@
+package org.conceptoriented.sc.rest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.conceptoriented.sc.core.*;
+
+/**
+ * Evaluation of schemas in background threads.
+ *
+ * Jobs are executed by a bounded pool with a bounded queue so that request threads only submit a job and return its id.
+ * If the queue is full then a job is rejected rather than queued without limit.
+ * A running job holds the write lock of its account like the synchronous evaluation.
+ * Finished jobs are kept for the retention time so that their status and result can be retrieved.
+ */
+class EvaluationJobs {
+
+	private static final Logger LOG = LoggerFactory.getLogger(EvaluationJobs.class.getName());
+
+	private final Repository repository;
+
+	protected Map<UUID, Job> jobs = new ConcurrentHashMap<UUID, Job>();
+
+	protected int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	protected int queueSize = 100; // Jobs waiting for a thread
+	public void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	protected Duration retention = Duration.ofMinutes(10); // How long finished jobs are kept
+	public void setRetention(Duration retention) {
+		this.retention = retention;
+	}
+
+	// Queue the evaluation of the schema. Null is returned if there are too many jobs.
+	public Job submit(Account account, UUID schemaId, boolean full, boolean parallel) {
+		purge();
+		Job job = new Job(account.getId(), schemaId, full, parallel);
+		ThreadPoolExecutor pool = this.pool;
+		if(pool == null) return null; // Not started
+		this.jobs.put(job.getId(), job);
+		try {
+			pool.execute(() -> run(job));
+		}
+		catch(RejectedExecutionException e) {
+			this.jobs.remove(job.getId());
+			return null;
+		}
+		return job;
+	}
+
+	public Job getJob(UUID id) {
+		return this.jobs.get(id);
+	}
+
+	protected void run(Job job) {
+		job.started = Instant.now();
+		job.status = Status.RUNNING;
+		try {
+			Account acc = this.repository.peekAccount(job.accountId); // The lock loads the account if it is hibernated
+			if(acc == null) {
+				job.finish(Status.FAILED, DcError.error(DcErrorCode.GENERAL, "Account not found.", ""));
+				return;
+			}
+
+			Lock lock = this.repository.writeLock(acc);
+			try {
+				if(acc.getDeletionTime() != null) {
+					job.finish(Status.FAILED, DcError.error(DcErrorCode.GENERAL, "Account not found.", ""));
+					return;
+				}
+				Schema schema = this.repository.getSchema(job.accountId, job.schemaId);
+				if(schema == null) {
+					job.finish(Status.FAILED, DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+					return;
+				}
+
+				ChangeTracker.Plan plan = this.repository.evaluateSchema(acc, schema, job.full, job.parallel, (evaluated, total) -> {
+					job.evaluated.accumulateAndGet(evaluated, Math::max); // Callbacks of parallel evaluation can come out of order
+					job.total.set(total);
+				});
+				job.finish(Status.DONE, "{ \"data\": [], " + plan.toJson() + " }");
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		catch(Throwable e) {
+			LOG.error("Exception",  e);
+			job.finish(Status.FAILED, DcError.error(DcErrorCode.GENERAL, "Error evaluating data.", e.getMessage()));
+		}
+	}
+
+	// Remove jobs which finished before the retention time and jobs of deleted accounts
+	public int purge() {
+		Instant oldest = Instant.now().minus(this.retention);
+		int count = 0;
+		for(Job job : this.jobs.values()) {
+			boolean expired = job.finished != null && job.finished.isBefore(oldest);
+			boolean orphan = job.finished != null && this.repository.peekAccount(job.accountId) == null; // Accounts are neither marked as accessed nor loaded
+			if(expired || orphan) {
+				this.jobs.remove(job.getId());
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private ThreadPoolExecutor pool;
+
+	public synchronized void start() {
+		if(this.pool != null) return;
+		AtomicInteger number = new AtomicInteger();
+		this.pool = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(this.queueSize), r -> {
+			Thread thread = new Thread(r, "schema-evaluation-" + number.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public synchronized void stop() {
+		if(this.pool == null) return;
+		this.pool.shutdownNow();
+		this.pool = null;
+	}
+
+	public EvaluationJobs(Repository repository) {
+		this.repository = repository;
+	}
+
+	public enum Status {
+		QUEUED,
+		RUNNING,
+		DONE,
+		FAILED,
+	}
+
+	/**
+	 * One evaluation request with its progress and result.
+	 */
+	public static class Job {
+
+		private final UUID id = UUID.randomUUID();
+		public UUID getId() {
+			return this.id;
+		}
+
+		protected final UUID accountId;
+		public UUID getAccountId() {
+			return this.accountId;
+		}
+
+		protected final UUID schemaId;
+
+		protected final boolean full;
+
+		protected final boolean parallel;
+
+		protected volatile Status status = Status.QUEUED;
+		public Status getStatus() {
+			return this.status;
+		}
+		public boolean isFinished() {
+			return this.status == Status.DONE || this.status == Status.FAILED;
+		}
+
+		protected final Instant created = Instant.now();
+		protected volatile Instant started;
+		protected volatile Instant finished;
+
+		// Progress is the number of evaluated columns out of the columns to be evaluated
+		protected final AtomicInteger evaluated = new AtomicInteger();
+		protected final AtomicInteger total = new AtomicInteger();
+
+		protected volatile String result; // Response of the synchronous evaluation or an error
+		public String getResult() {
+			return this.result;
+		}
+
+		protected void finish(Status status, String result) {
+			this.result = result;
+			this.finished = Instant.now();
+			this.status = status; // Last so that the result is visible when the status is finished
+		}
+
+		public String toJson() {
+			String jid = "`id`: `" + this.id + "`, `schema`: `" + this.schemaId + "`, `status`: `" + this.status + "`";
+			String jprogress = "`evaluated`: " + this.evaluated.get() + ", `total`: " + this.total.get();
+			String jtimes = "`created`: `" + this.created + "`, `started`: " + quote(this.started) + ", `finished`: " + quote(this.finished);
+			String json = jid + ", " + jprogress + ", " + jtimes;
+			return ("{" + json + "}").replace('`', '"');
+		}
+
+		private static String quote(Instant instant) {
+			return instant != null ? "`" + instant + "`" : "null";
+		}
+
+		public Job(UUID accountId, UUID schemaId, boolean full, boolean parallel) {
+			this.accountId = accountId;
+			this.schemaId = schemaId;
+			this.full = full;
+			this.parallel = parallel;
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+package org.conceptoriented.sc.rest;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Request metrics of one endpoint family (a request method and mapping pattern) for the whole service or for one account. 
+ * 
+ * Each family has histograms of request duration, request size and response size. All counters are adders so that 
+ * concurrent requests do not contend. Metrics are exported in the Prometheus text format.
+ */
+class Metrics {
+
+	// Upper bounds of histogram buckets (the last bucket is unbounded)
+	static final double[] DURATION_BUCKETS = { 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10 }; // Seconds
+	static final double[] SIZE_BUCKETS = { 256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216 }; // Bytes
+
+	protected Map<String, Family> families = new ConcurrentHashMap<String, Family>();
+
+	public Family getFamily(String method, String path) {
+		return this.families.computeIfAbsent(method + " " + path, k -> new Family(method, path));
+	}
+
+	public void observe(String method, String path, long nanos, long requestSize, long responseSize) {
+		Family family = getFamily(method, path);
+		family.duration.observe(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+		if(requestSize >= 0) family.requestSize.observe(requestSize);
+		if(responseSize >= 0) family.responseSize.observe(responseSize);
+	}
+
+	//
+	// Export
+	//
+
+	// Append one histogram metric of all families of all sources. Each source is identified by its labels (empty for global metrics).
+	// All lines of one metric are written together as required by the format.
+	public static void writeHistograms(StringBuilder out, String name, String help, Map<String, Metrics> sources, Function<Family, Histogram> histogram) {
+		writeType(out, name, "histogram", help);
+		for(Map.Entry<String, Metrics> source : sources.entrySet()) {
+			String labels = source.getKey().isEmpty() ? "" : source.getKey() + ",";
+			Map<String, Family> sorted = new TreeMap<String, Family>(source.getValue().families);
+			for(Family family : sorted.values()) {
+				histogram.apply(family).write(out, name, labels + "method=\"" + family.method + "\",path=\"" + escape(family.path) + "\"");
+			}
+		}
+	}
+
+	public static void writeType(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	public static void writeValue(StringBuilder out, String name, String labels, double value) {
+		out.append(name);
+		if(labels != null && !labels.isEmpty()) out.append('{').append(labels).append('}');
+		out.append(' ').append(format(value)).append('\n');
+	}
+
+	public static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	static String format(double value) {
+		if(value == Double.POSITIVE_INFINITY) return "+Inf";
+		if(value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+		return String.format(Locale.ROOT, "%s", value);
+	}
+
+	/**
+	 * Metrics of one endpoint family.
+	 */
+	static class Family {
+		final String method;
+		final String path;
+		final Histogram duration = new Histogram(DURATION_BUCKETS);
+		final Histogram requestSize = new Histogram(SIZE_BUCKETS);
+		final Histogram responseSize = new Histogram(SIZE_BUCKETS);
+
+		public Histogram getDuration() {
+			return duration;
+		}
+		public Histogram getRequestSize() {
+			return requestSize;
+		}
+		public Histogram getResponseSize() {
+			return responseSize;
+		}
+
+		Family(String method, String path) {
+			this.method = method;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * Histogram with fixed buckets.
+	 */
+	static class Histogram {
+		final double[] bounds;
+		final LongAdder[] counts; // Non-cumulative, one more than bounds
+		final DoubleAdder sum = new DoubleAdder();
+
+		public void observe(double value) {
+			int i = 0;
+			while(i < this.bounds.length && value > this.bounds[i]) i++;
+			this.counts[i].increment();
+			this.sum.add(value);
+		}
+
+		public long getCount() {
+			long count = 0;
+			for(LongAdder c : this.counts) count += c.sum();
+			return count;
+		}
+		public double getSum() {
+			return this.sum.sum();
+		}
+
+		// Buckets are cumulative in the export format
+		public void write(StringBuilder out, String name, String labels) {
+			String sep = labels.isEmpty() ? "" : ",";
+			long cumulative = 0;
+			for(int i = 0; i <= this.bounds.length; i++) {
+				cumulative += this.counts[i].sum();
+				double bound = i < this.bounds.length ? this.bounds[i] : Double.POSITIVE_INFINITY;
+				writeValue(out, name + "_bucket", labels + sep + "le=\"" + format(bound) + "\"", cumulative);
+			}
+			writeValue(out, name + "_sum", labels, getSum());
+			writeValue(out, name + "_count", labels, cumulative);
+		}
+
+		Histogram(double[] bounds) {
+			this.bounds = bounds;
+			this.counts = new LongAdder[bounds.length + 1];
+			for(int i = 0; i < this.counts.length; i++) {
+				this.counts[i] = new LongAdder();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package org.conceptoriented.sc.rest;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+/**
+ * Measure duration and body sizes of all API requests and add them to the metrics of the service and of the account of the request. 
+ * Requests are grouped by their method and mapping pattern. Asynchronous requests are measured when they complete.
+ */
+@Component
+public class MetricsFilter extends OncePerRequestFilter {
+
+	private final Repository repository;
+	@Autowired
+	public MetricsFilter(Repository repository) {
+		this.repository = repository;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+		long start = System.nanoTime();
+		CountingRequest req = new CountingRequest(request);
+		CountingResponse res = new CountingResponse(response);
+
+		try {
+			chain.doFilter(req, res);
+		}
+		finally {
+			if(req.isAsyncStarted()) {
+				req.getAsyncContext().addListener(new AsyncListener() {
+					@Override
+					public void onComplete(AsyncEvent event) {
+						record(req, res, start);
+					}
+					@Override
+					public void onTimeout(AsyncEvent event) {}
+					@Override
+					public void onError(AsyncEvent event) {}
+					@Override
+					public void onStartAsync(AsyncEvent event) {}
+				});
+			}
+			else {
+				record(req, res, start);
+			}
+		}
+	}
+
+	protected void record(CountingRequest req, CountingResponse res, long start) {
+		long nanos = System.nanoTime() - start;
+
+		Object pattern = req.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+		if(pattern == null || !pattern.toString().startsWith("/api")) return; // Not an API request
+
+		long requestSize = Math.max(req.count, req.getContentLengthLong()); // Multipart bodies are not read through the wrapper
+		long responseSize = res.count;
+
+		this.repository.getMetrics().observe(req.getMethod(), pattern.toString(), nanos, requestSize, responseSize);
+
+		HttpSession session = req.getSession(false);
+		Account acc = session != null ? this.repository.peekAccountForSession(session.getId()) : null;
+		if(acc != null) {
+			acc.getMetrics().observe(req.getMethod(), pattern.toString(), nanos, requestSize, responseSize);
+		}
+	}
+
+	static class CountingRequest extends HttpServletRequestWrapper {
+		volatile long count;
+		private ServletInputStream stream;
+
+		@Override
+		public ServletInputStream getInputStream() throws IOException {
+			if(this.stream != null) return this.stream;
+			ServletInputStream in = super.getInputStream();
+			this.stream = new ServletInputStream() {
+				@Override
+				public int read() throws IOException {
+					int b = in.read();
+					if(b >= 0) count++;
+					return b;
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = in.read(b, off, len);
+					if(n > 0) count += n;
+					return n;
+				}
+				@Override
+				public boolean isFinished() {
+					return in.isFinished();
+				}
+				@Override
+				public boolean isReady() {
+					return in.isReady();
+				}
+				@Override
+				public void setReadListener(ReadListener listener) {
+					in.setReadListener(listener);
+				}
+			};
+			return this.stream;
+		}
+
+		CountingRequest(HttpServletRequest request) {
+			super(request);
+		}
+	}
+
+	static class CountingResponse extends HttpServletResponseWrapper {
+		volatile long count;
+		private ServletOutputStream stream;
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if(this.stream != null) return this.stream;
+			ServletOutputStream out = super.getOutputStream();
+			this.stream = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					count++;
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					count += len;
+				}
+				@Override
+				public void flush() throws IOException {
+					out.flush();
+				}
+				@Override
+				public void close() throws IOException {
+					out.close();
+				}
+				@Override
+				public boolean isReady() {
+					return out.isReady();
+				}
+				@Override
+				public void setWriteListener(WriteListener listener) {
+					out.setWriteListener(listener);
+				}
+			};
+			return this.stream;
+		}
+
+		CountingResponse(HttpServletResponse response) {
+			super(response);
+		}
+	}
+
+}
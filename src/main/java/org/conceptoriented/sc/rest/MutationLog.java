@@ -0,0 +1,391 @@
+package org.conceptoriented.sc.rest;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead log of mutations of schemas and data. 
+ * 
+ * Mutations are appended after they have been applied and before the response is returned, so every acknowledged change is in the log.
+ * Entries are written by one background thread with group commit: all entries queued while the previous batch was being written 
+ * are written together and made durable by one fsync, so concurrent appenders share the cost of one sync.
+ * 
+ * The log consists of segment files named by the sequence number of their first entry. 
+ * Each entry is stored as: length, crc32, sequence, operation, account id, target id, body. 
+ * A torn entry at the end of the last segment (crash during write) is detected by its length or crc and ignored.
+ * Segments which contain only entries stored in a snapshot are deleted after the snapshot.
+ */
+class MutationLog {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MutationLog.class.getName());
+
+	public enum Op {
+		ACCOUNT_CREATE, ACCOUNT_DELETE,
+		SCHEMA_CREATE, SCHEMA_UPDATE, SCHEMA_DELETE,
+		TABLE_CREATE, TABLE_UPDATE, TABLE_DELETE,
+		COLUMN_CREATE, COLUMN_UPDATE, COLUMN_DELETE,
+		RECORDS_JSON, RECORDS_CSV, RECORDS_DELETE,
+		RECORDS_BINARY, // Number of records followed by a stream of ColumnarFormat with one chunk
+	}
+
+	public static class Entry {
+		public final long sequence;
+		public final Op op;
+		public final UUID account;
+		public final UUID target; // Schema, table or column depending on the operation
+		public final byte[] body;
+
+		public String getBodyString() {
+			return new String(this.body, StandardCharsets.UTF_8);
+		}
+
+		public Entry(long sequence, Op op, UUID account, UUID target, byte[] body) {
+			this.sequence = sequence;
+			this.op = op;
+			this.account = account;
+			this.target = target;
+			this.body = body;
+		}
+	}
+
+	//
+	// Parameters
+	//
+	protected File dir = new File(".");
+	public void setDir(File dir) {
+		this.dir = dir;
+	}
+
+	protected String name = "repo.wal";
+
+	protected boolean sync = true; // Wait for fsync before returning from append
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	protected long maxSegmentSize = 64L * 1024 * 1024;
+	public void setMaxSegmentSize(long maxSegmentSize) {
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	protected long maxBatchSize = 16L * 1024 * 1024; // Bytes written with one sync (a batch has at least one entry)
+	public void setMaxBatchSize(long maxBatchSize) {
+		this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, Integer.MAX_VALUE / 2));
+	}
+
+	//
+	// Statistics
+	//
+	protected AtomicLong appendCount = new AtomicLong();
+	public long getAppendCount() {
+		return appendCount.get();
+	}
+	protected AtomicLong syncCount = new AtomicLong();
+	public long getSyncCount() {
+		return syncCount.get();
+	}
+
+	//
+	// Append
+	//
+
+	protected AtomicLong nextSequence = new AtomicLong(1);
+	public long getNextSequence() {
+		return this.nextSequence.get();
+	}
+
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>(100000);
+
+	// Append an entry and (if sync is on) wait until it is durable. Returns the sequence number of the entry.
+	public long append(Op op, UUID account, UUID target, byte[] body) throws IOException {
+		Pending pending = enqueue(op, account, target, body);
+		if(this.sync) await(pending);
+		return pending.entry.sequence;
+	}
+
+	// Entries are queued in the order of their sequence numbers
+	protected synchronized Pending enqueue(Op op, UUID account, UUID target, byte[] body) throws IOException {
+		if(this.writerThread == null) throw new IOException("Mutation log is not started.");
+		Pending pending = new Pending(new Entry(this.nextSequence.getAndIncrement(), op, account, target, body));
+		try {
+			this.queue.put(pending);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing mutation log.", e);
+		}
+		this.appendCount.incrementAndGet();
+		return pending;
+	}
+
+	protected void await(Pending pending) throws IOException {
+		try {
+			pending.future.get();
+		}
+		catch(ExecutionException e) {
+			throw new IOException("Error writing mutation log.", e.getCause());
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing mutation log.", e);
+		}
+	}
+
+	//
+	// Writer
+	//
+	private Thread writerThread;
+	private volatile boolean running;
+	private volatile boolean rollRequested;
+
+	private FileChannel channel;
+	private long segmentSize;
+
+	public synchronized void start() {
+		if(this.writerThread != null) return;
+		this.running = true;
+		this.writerThread = new Thread(this::run, "mutation-log");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	public void stop() {
+		Thread thread;
+		synchronized(this) {
+			thread = this.writerThread;
+			if(thread == null) return;
+			this.writerThread = null; // No new entries
+		}
+		this.running = false;
+		this.queue.offer(STOP); // The writer is not interrupted because an interrupted write closes the channel
+		try {
+			thread.join(10000);
+			if(thread.isAlive()) thread.interrupt();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Wakes up the writer after the last entry
+	private static final Pending STOP = new Pending(null);
+
+	protected void run() {
+		List<Pending> batch = new ArrayList<Pending>();
+		while(this.running || !this.queue.isEmpty()) {
+			try {
+				Pending first = this.running ? this.queue.take() : this.queue.poll();
+				if(first == null) break;
+				if(first == STOP) continue;
+				batch.add(first);
+				long size = getSize(first.entry);
+				Pending next;
+				while(size < this.maxBatchSize && (next = this.queue.poll()) != null) { // Batch is limited by bytes because bodies can be large
+					if(next == STOP) break;
+					batch.add(next);
+					size += getSize(next.entry);
+				}
+
+				write(batch);
+				for(Pending pending : batch) {
+					pending.future.complete(pending.entry.sequence);
+				}
+			}
+			catch(InterruptedException e) {
+				; // Stop requested. Write what remains in the queue.
+			}
+			catch(Exception e) {
+				LOG.error("Error writing mutation log. Entries lost: " + batch.size(), e);
+				for(Pending pending : batch) {
+					pending.future.completeExceptionally(e);
+				}
+				closeSegment();
+			}
+			batch.clear();
+		}
+		closeSegment();
+	}
+
+	// Bytes of the entry in a segment
+	protected static long getSize(Entry entry) {
+		return 8 + 8 + 4 + 16 + 16 + (long) entry.body.length;
+	}
+
+	protected void write(List<Pending> batch) throws IOException {
+		if(this.channel != null && (this.rollRequested || this.segmentSize >= this.maxSegmentSize)) {
+			closeSegment();
+		}
+		if(this.channel == null) {
+			this.dir.mkdirs();
+			File file = new File(this.dir, String.format("%s.%020d", this.name, batch.get(0).entry.sequence));
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			this.segmentSize = this.channel.size();
+			this.rollRequested = false;
+		}
+
+		long size = 0;
+		for(Pending pending : batch) {
+			size += getSize(pending.entry);
+		}
+		if(size > Integer.MAX_VALUE) throw new IOException("Mutation log batch too large: " + size + " bytes.");
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		CRC32 crc = new CRC32();
+		for(Pending pending : batch) {
+			Entry entry = pending.entry;
+			int length = 8 + 4 + 16 + 16 + entry.body.length; // Payload after length and crc
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			payload.putLong(entry.sequence);
+			payload.putInt(entry.op.ordinal());
+			payload.putLong(entry.account.getMostSignificantBits()).putLong(entry.account.getLeastSignificantBits());
+			payload.putLong(entry.target.getMostSignificantBits()).putLong(entry.target.getLeastSignificantBits());
+			payload.put(entry.body);
+
+			crc.reset();
+			crc.update(payload.array(), 0, length);
+			buffer.putInt(length);
+			buffer.putInt((int) crc.getValue());
+			buffer.put(payload.array());
+		}
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			this.channel.write(buffer);
+		}
+		this.channel.force(false); // One sync for the whole batch
+		this.syncCount.incrementAndGet();
+		this.segmentSize += size;
+	}
+
+	private void closeSegment() {
+		if(this.channel == null) return;
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			LOG.error("Error closing mutation log.", e);
+		}
+		this.channel = null;
+	}
+
+	//
+	// Segments
+	//
+
+	// Segment files in the order of their sequence numbers
+	public List<File> getSegments() {
+		File[] files = this.dir.listFiles((d, n) -> n.startsWith(this.name + "."));
+		if(files == null) return new ArrayList<File>();
+		Arrays.sort(files);
+		return new ArrayList<File>(Arrays.asList(files));
+	}
+
+	protected static long getFirstSequence(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+	}
+
+	// Delete segments which contain only entries with sequence numbers less than the specified one 
+	public void truncate(long sequence) {
+		this.rollRequested = true; // The current segment will not be appended anymore
+		List<File> segments = getSegments();
+		for(int i = 0; i < segments.size() - 1; i++) {
+			if(getFirstSequence(segments.get(i + 1)) > sequence) break;
+			if(!segments.get(i).delete()) {
+				LOG.warn("Cannot delete mutation log segment: {}", segments.get(i));
+			}
+		}
+	}
+
+	//
+	// Replay
+	//
+
+	// Read all entries in the order of their sequence numbers. Returns the number of entries read.
+	public long replay(Consumer<Entry> consumer) throws IOException {
+		long count = 0;
+		for(File segment : getSegments()) {
+			long remaining = segment.length();
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 1 << 16))) {
+				while(true) {
+					Entry entry = readEntry(in, remaining);
+					if(entry == null) break;
+					remaining -= getSize(entry);
+					consumer.accept(entry);
+					this.nextSequence.accumulateAndGet(entry.sequence + 1, Math::max);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	// Null if there are no more (complete and valid) entries. An entry cannot be longer than the rest of its segment.
+	protected static Entry readEntry(DataInputStream in, long remaining) throws IOException {
+		byte[] payload;
+		int checksum;
+		try {
+			int length = in.readInt();
+			checksum = in.readInt();
+			if(length < 8 + 4 + 16 + 16) return null;
+			if(length > remaining - 8) { // Torn or corrupted length
+				LOG.warn("Mutation log entry with wrong length ignored. Length: {}, Remaining: {}", length, remaining - 8);
+				return null;
+			}
+			payload = new byte[length];
+			in.readFully(payload);
+		}
+		catch(EOFException e) {
+			return null; // End of segment or torn entry
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		if((int) crc.getValue() != checksum) {
+			LOG.warn("Mutation log entry with wrong checksum ignored.");
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		long sequence = buffer.getLong();
+		int ordinal = buffer.getInt();
+		if(ordinal < 0 || ordinal >= Op.values().length) {
+			LOG.warn("Mutation log entry with unknown operation ignored. Operation: {}, Sequence: {}", ordinal, sequence);
+			return null;
+		}
+		Op op = Op.values()[ordinal];
+		UUID account = new UUID(buffer.getLong(), buffer.getLong());
+		UUID target = new UUID(buffer.getLong(), buffer.getLong());
+		byte[] body = new byte[buffer.remaining()];
+		buffer.get(body);
+		return new Entry(sequence, op, account, target, body);
+	}
+
+	static class Pending {
+		final Entry entry;
+		final CompletableFuture<Long> future = new CompletableFuture<Long>();
+
+		Pending(Entry entry) {
+			this.entry = entry;
+		}
+	}
+
+}
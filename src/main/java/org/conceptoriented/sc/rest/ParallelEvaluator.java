@@ -0,0 +1,86 @@
+package org.conceptoriented.sc.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.conceptoriented.sc.core.*;
+
+/**
+ * Evaluation of independent columns in parallel.
+ *
+ * Columns are given in the order of their dependencies (dependencies first) as they would be evaluated sequentially.
+ * Each column is evaluated in a fork/join pool as soon as the columns it depends on have been evaluated.
+ * The evaluation of one column can fork tasks in the same pool (see RowEvaluator).
+ * A LINK column can append rows to its output table, so it is never evaluated concurrently with other columns of that table
+ * and their sequential order is retained.
+ */
+class ParallelEvaluator {
+
+	protected int parallelism = Runtime.getRuntime().availableProcessors();
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	private ForkJoinPool pool;
+
+	protected synchronized ForkJoinPool getPool() {
+		if(this.pool == null) this.pool = new ForkJoinPool(this.parallelism);
+		return this.pool;
+	}
+
+	protected interface ColumnEvaluation {
+		void evaluate(Column column) throws Exception;
+	}
+
+	// The callback is called (by pool threads) after each evaluated column
+	public void evaluate(List<Column> columns, ColumnEvaluation evaluation, Runnable evaluated) throws Exception {
+		ForkJoinPool pool = getPool();
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(columns.size());
+		for(int i = 0; i < columns.size(); i++) {
+			Column column = columns.get(i);
+
+			List<CompletableFuture<Void>> inputs = new ArrayList<CompletableFuture<Void>>();
+			for(int j = 0; j < i; j++) {
+				if(dependsOn(column, columns.get(j))) inputs.add(futures.get(j));
+			}
+
+			CompletableFuture<Void> future = CompletableFuture.allOf(inputs.toArray(new CompletableFuture[inputs.size()])).thenRunAsync(() -> {
+				try {
+					evaluation.evaluate(column);
+				}
+				catch(Exception e) {
+					throw new CompletionException(e);
+				}
+				if(evaluated != null) evaluated.run();
+			}, pool);
+			futures.add(future);
+		}
+
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+		}
+		catch(CompletionException e) {
+			if(e.getCause() instanceof Exception) throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	// Whether the column has to be evaluated after the previous column
+	protected static boolean dependsOn(Column column, Column previous) {
+		List<Column> dependencies = column.getDependencies();
+		if(dependencies != null && dependencies.contains(previous)) return true;
+		if(previous.getKind() == DcColumnKind.LINK && previous.getOutput() == column.getInput()) return true; // Rows appended by the link
+		if(column.getKind() == DcColumnKind.LINK && column.getOutput() == previous.getInput()) return true; // Rows appended by the link
+		return false;
+	}
+
+	public synchronized void stop() {
+		if(this.pool == null) return;
+		this.pool.shutdownNow();
+		this.pool = null;
+	}
+
+}
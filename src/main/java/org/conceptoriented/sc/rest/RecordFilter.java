@@ -0,0 +1,138 @@
+package org.conceptoriented.sc.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.conceptoriented.sc.core.*;
+
+import net.objecthunter.exp4j.Expression;
+import net.objecthunter.exp4j.ExpressionBuilder;
+import net.objecthunter.exp4j.ValidationResult;
+import net.objecthunter.exp4j.operator.Operator;
+
+/**
+ * Predicate on records of one table. 
+ * 
+ * The condition uses the syntax of calculated columns where column names are enclosed in brackets, 
+ * for example, <code>[Total Amount] &gt; 1000 &amp;&amp; [Product ID] != 3</code>. In addition to arithmetic operators and functions of exp4j, 
+ * comparisons (&lt;, &lt;=, &gt;, &gt;=, ==, !=) and logical operators (&amp;&amp;, ||) can be used. 
+ * Values are compared as numbers (true is 1, and null and non-numeric values are NaN which is not equal to anything) and a record satisfies the condition if the result is non-zero.
+ * The expression is parsed once and then evaluated for each record. An instance must not be used by several threads.
+ */
+class RecordFilter {
+
+	private static final Pattern COLUMN = Pattern.compile("\\[([^\\]]+)\\]");
+
+	// Precedence is lower than that of addition (500) so that arithmetic is computed first
+	private static final Operator[] OPERATORS = {
+		comparison("<", 300, (a, b) -> a < b),
+		comparison("<=", 300, (a, b) -> a <= b),
+		comparison(">", 300, (a, b) -> a > b),
+		comparison(">=", 300, (a, b) -> a >= b),
+		comparison("==", 200, (a, b) -> a == b),
+		comparison("!=", 200, (a, b) -> a != b && !(Double.isNaN(a) && Double.isNaN(b))),
+		comparison("&&", 100, (a, b) -> isTrue(a) && isTrue(b)),
+		comparison("||", 50, (a, b) -> isTrue(a) || isTrue(b)),
+	};
+
+	private final String condition;
+	public String getCondition() {
+		return this.condition;
+	}
+
+	private final List<String> columns = new ArrayList<String>(); // Column of each variable v0, v1, ...
+	public List<String> getColumns() {
+		return this.columns;
+	}
+
+	private final Expression expression;
+
+	public boolean test(Record record) {
+		for(int i = 0; i < this.columns.size(); i++) {
+			this.expression.setVariable("v" + i, toDouble(record.get(this.columns.get(i))));
+		}
+		return isTrue(this.expression.evaluate());
+	}
+
+	// Select records satisfying the condition
+	public List<Record> filter(List<Record> records) {
+		List<Record> result = new ArrayList<Record>();
+		for(Record record : records) {
+			if(test(record)) result.add(record);
+		}
+		return result;
+	}
+
+	// Replace column names in brackets by variables v0, v1, ... and add the column of each variable to the list
+	protected static String toVariables(String expression, List<String> tableColumns, List<String> columns) {
+		Matcher matcher = COLUMN.matcher(expression);
+		StringBuffer sb = new StringBuffer();
+		while(matcher.find()) {
+			String name = matcher.group(1).trim();
+			if(!tableColumns.contains(name)) throw new IllegalArgumentException("Column not found: " + name);
+			int index = columns.indexOf(name);
+			if(index < 0) {
+				index = columns.size();
+				columns.add(name);
+			}
+			matcher.appendReplacement(sb, "v" + index);
+		}
+		matcher.appendTail(sb);
+		return sb.toString();
+	}
+
+	protected static double toDouble(Object value) {
+		if(value instanceof Number) return ((Number) value).doubleValue();
+		if(value instanceof Boolean) return (Boolean) value ? 1.0 : 0.0;
+		if(value instanceof String) {
+			try {
+				return Double.parseDouble(((String) value).trim());
+			}
+			catch(NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+		return Double.NaN;
+	}
+
+	protected static boolean isTrue(double value) {
+		return value != 0.0 && !Double.isNaN(value);
+	}
+
+	private interface Comparison {
+		boolean apply(double a, double b);
+	}
+	private static Operator comparison(String symbol, int precedence, Comparison comparison) {
+		return new Operator(symbol, 2, true, precedence) {
+			@Override
+			public double apply(double... args) {
+				return comparison.apply(args[0], args[1]) ? 1.0 : 0.0;
+			}
+		};
+	}
+
+	// Parse the condition. Column names are checked against the specified columns of the table.
+	public RecordFilter(String condition, List<String> tableColumns) {
+		if(condition == null || condition.trim().isEmpty()) throw new IllegalArgumentException("Empty condition.");
+		this.condition = condition;
+
+		ExpressionBuilder builder = new ExpressionBuilder(toVariables(condition, tableColumns, this.columns)).operator(OPERATORS);
+		for(int i = 0; i < this.columns.size(); i++) {
+			builder.variable("v" + i);
+		}
+		try {
+			this.expression = builder.build();
+		}
+		catch(RuntimeException e) { // exp4j reports syntax errors as unchecked exceptions
+			throw new IllegalArgumentException("Invalid condition: " + e.getMessage());
+		}
+
+		ValidationResult validation = this.expression.validate(false);
+		if(!validation.isValid()) {
+			throw new IllegalArgumentException("Invalid condition: " + String.join(" ", validation.getErrors()));
+		}
+	}
+
+}
@@ -1,131 +1,676 @@
 package org.conceptoriented.sc.rest;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import com.google.common.io.Files;
 
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpSession;
 
-import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.conceptoriented.sc.core.*;
+import org.json.JSONObject;
 
 @Service
 public class Repository  {
 
+	private static final Logger LOG = LoggerFactory.getLogger(Repository.class.getName());
+
 	// It is where we store various assets including UDFs
 	protected String udfDir; 
 	protected File classDir;
 	
 	protected Duration accountTimeout = Duration.ofHours(3); // Maximum inactivity time after last access
+	@Value("${app.accountTimeout:10800}")
+	public void setAccountTimeout(long seconds) {
+		this.accountTimeout = Duration.ofSeconds(seconds);
+	}
+
 	protected Duration accountAge = Duration.ofHours(12); // Maximum existence time after being created
-	protected Instant lastCheck = Instant.now();
+	@Value("${app.accountAge:43200}")
+	public void setAccountAge(long seconds) {
+		this.accountAge = Duration.ofSeconds(seconds);
+	}
+
+	protected Duration expiryPeriod = Duration.ofSeconds(10); // How frequently expired accounts are searched for
+	@Value("${app.expiryPeriod:10}")
+	public void setExpiryPeriod(long seconds) {
+		this.expiryPeriod = Duration.ofSeconds(seconds);
+	}
+
+	// Expired accounts are deleted in background so that request threads never do it
+	protected AccountExpiry expiry = new AccountExpiry(this);
+
+	// Deleted accounts are written to this archive
+	protected AccountArchive archive = new AccountArchive();
+
+	@Value("${app.archive.dir:.}")
+	public void setArchiveDir(String dir) {
+		this.archive.setDir(new File(dir));
+	}
+	@Value("${app.archive.maxFileSize:10485760}")
+	public void setArchiveMaxFileSize(long bytes) {
+		this.archive.setMaxFileSize(bytes);
+	}
+	@Value("${app.archive.maxFileAge:86400}")
+	public void setArchiveMaxFileAge(long seconds) {
+		this.archive.setMaxFileAge(Duration.ofSeconds(seconds));
+	}
+	@Value("${app.archive.compress:true}")
+	public void setArchiveCompress(boolean compress) {
+		this.archive.setCompress(compress);
+	}
+
+	// All accounts are periodically written to a snapshot file and restored from it on start
+	protected RepositorySnapshot snapshot = new RepositorySnapshot(this);
+
+	@Value("${app.snapshot.file:}")
+	public void setSnapshotFile(String file) {
+		this.snapshot.setFile(file == null || file.trim().isEmpty() ? null : new File(file));
+	}
+	@Value("${app.snapshot.period:300}")
+	public void setSnapshotPeriod(long seconds) {
+		this.snapshot.setPeriod(Duration.ofSeconds(seconds));
+	}
+
+	// Inactive accounts are written to disk and released from memory instead of being deleted
+	protected AccountHibernation hibernation = new AccountHibernation(this);
+
+	@Value("${app.hibernation.dir:}")
+	public void setHibernationDir(String dir) {
+		this.hibernation.setDir(dir == null || dir.trim().isEmpty() ? null : new File(dir));
+	}
+	@Value("${app.hibernation.heapBudget:0}")
+	public void setHibernationHeapBudget(long bytes) {
+		this.hibernation.setHeapBudget(bytes);
+	}
+
+	// Mutations of schemas and data are logged between snapshots and replayed after restoring a snapshot
+	protected MutationLog log = new MutationLog();
+	protected boolean logEnabled = false;
+	public boolean isLogEnabled() { // Bodies of mutations need not be built otherwise
+		return this.logEnabled;
+	}
+
+	@Value("${app.wal.dir:}")
+	public void setLogDir(String dir) {
+		this.logEnabled = dir != null && !dir.trim().isEmpty();
+		if(this.logEnabled) this.log.setDir(new File(dir));
+	}
+	@Value("${app.wal.sync:true}")
+	public void setLogSync(boolean sync) {
+		this.log.setSync(sync);
+	}
+
+	protected int exportChunkSize = 10000; // Records read at once when table data is streamed to a client
+	public int getExportChunkSize() {
+		return this.exportChunkSize;
+	}
+	@Value("${app.export.chunkSize:10000}")
+	public void setExportChunkSize(int chunkSize) {
+		this.exportChunkSize = Math.max(1, chunkSize);
+	}
+
+	protected int ingestBatchSize = 10000; // Records appended at once (under the write lock of the account) when uploaded data is streamed from a client
+	public int getIngestBatchSize() {
+		return this.ingestBatchSize;
+	}
+	@Value("${app.ingest.batchSize:10000}")
+	public void setIngestBatchSize(int batchSize) {
+		this.ingestBatchSize = Math.max(1, batchSize);
+	}
+
+	// Evaluation requested asynchronously is executed by a bounded pool of background threads
+	protected EvaluationJobs evaluation = new EvaluationJobs(this);
+	public EvaluationJobs getEvaluation() {
+		return this.evaluation;
+	}
+
+	@Value("${app.evaluation.threads:0}")
+	public void setEvaluationThreads(int threads) {
+		if(threads > 0) this.evaluation.setThreads(threads); // Otherwise the default depends on the number of processors
+	}
+	@Value("${app.evaluation.queueSize:100}")
+	public void setEvaluationQueueSize(int queueSize) {
+		this.evaluation.setQueueSize(queueSize);
+	}
+	@Value("${app.evaluation.retention:600}")
+	public void setEvaluationRetention(long seconds) {
+		this.evaluation.setRetention(Duration.ofSeconds(seconds));
+	}
+
+	// Independent columns are evaluated in parallel if requested
+	protected ParallelEvaluator parallelEvaluator = new ParallelEvaluator();
 
-	public void pruneAccounts() { // Delete all expired accounts
+	@Value("${app.evaluation.parallelism:0}")
+	public void setEvaluationParallelism(int parallelism) {
+		if(parallelism > 0) this.parallelEvaluator.setParallelism(parallelism); // Otherwise the number of processors
+	}
+
+	protected int partitionSize = 10000; // Rows evaluated by one task when a column is evaluated by partitions of rows
+	@Value("${app.evaluation.partitionSize:10000}")
+	public void setEvaluationPartitionSize(int partitionSize) {
+		this.partitionSize = Math.max(1, partitionSize);
+	}
+
+	@PostConstruct
+	public void start() {
+		this.assetStore.clear(); // Asset data is restored from the snapshot and the log
 
-		Instant now = Instant.now();
-		if(Duration.between(this.lastCheck, now).getSeconds() < 10) return; // Do not prune too frequently
-		List<Account> toDelete = new ArrayList<Account>();
-		for(Account acc : this.accounts) {
-			if(Duration.between(acc.getAccessTime(), now).getSeconds() > this.accountTimeout.getSeconds()) { // Not accessed long time
-				acc.setDeleted();
-				toDelete.add(acc);
+		try {
+			this.snapshot.restore();
+		}
+		catch(Exception e) {
+			LOG.error("Error restoring snapshot.", e);
+		}
+
+		if(this.logEnabled) {
+			try {
+				this.log.nextSequence.accumulateAndGet(this.snapshot.getSequence(), Math::max);
+				long count = this.log.replay(this::replay);
+				LOG.info("Mutation log replayed. Entries: {}", count);
+			}
+			catch(Exception e) {
+				LOG.error("Error replaying mutation log.", e);
 			}
+			this.log.start();
 		}
 
-		String fileName = "repo.log";
-		try (FileWriter fw = new FileWriter(fileName, true);
-				BufferedWriter bw = new BufferedWriter(fw);
-				PrintWriter out = new PrintWriter(bw)) {
+		this.hibernation.clear(); // Restored accounts are resident
 
-			// Write all pruned accounts to file
-			for(Account acc : toDelete) {
-				String jacc = acc.toJson();
-				out.print(jacc);
-				out.println(", ");
+		this.archive.start();
+		this.expiry.start(this.expiryPeriod);
+		this.hibernation.start();
+		this.snapshot.start();
+		this.evaluation.start();
+	}
+
+	@PreDestroy
+	public void stop() {
+		this.evaluation.stop();
+		this.parallelEvaluator.stop();
+		this.expiry.stop();
+		this.hibernation.stop();
+		this.snapshot.stop();
+		this.log.stop();
+		this.archive.stop();
+	}
+
+	// Append a mutation (which has been already applied) to the log and wait until it is durable.
+	// If it cannot be logged then the exception is passed to the request so that the client does not consider the change durable.
+	public void logMutation(Account account, MutationLog.Op op, UUID target, String body) throws IOException {
+		if(!this.logEnabled) return;
+		logMutation(account, op, target, body.getBytes(StandardCharsets.UTF_8));
+	}
+	public void logMutation(Account account, MutationLog.Op op, UUID target, byte[] body) throws IOException {
+		if(!this.logEnabled) return;
+		long sequence = this.log.append(op, account.getId(), target, body);
+		account.setLogSequence(sequence);
+	}
+
+	// Log a new account or schema with all its content
+	public void logAccount(Account account) throws IOException {
+		if(!this.logEnabled) return;
+		logMutation(account, MutationLog.Op.ACCOUNT_CREATE, account.getId(), AccountSerializer.toBytes(this, account));
+	}
+	public void logSchema(Account account, Schema schema) throws IOException {
+		if(!this.logEnabled) return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		AccountSerializer.writeSchema(new DataOutputStream(bytes), schema);
+		logMutation(account, MutationLog.Op.SCHEMA_CREATE, schema.getId(), bytes.toByteArray());
+	}
+
+	public void truncateLog(long sequence) {
+		if(!this.logEnabled) return;
+		this.log.truncate(sequence);
+	}
+
+	// Apply one logged mutation. Mutations already stored in the snapshot of their account are skipped.
+	protected void replay(MutationLog.Entry entry) {
+		Account acc = this.accounts.get(entry.account);
+		if(acc != null && entry.sequence <= acc.getLogSequence()) return;
+		if(acc == null && entry.op != MutationLog.Op.ACCOUNT_CREATE) return; // Account deleted
+
+		long dataSize = 0;
+		Table dataTable = null;
+		try {
+			switch(entry.op) {
+			case ACCOUNT_CREATE: {
+				acc = AccountSerializer.fromBytes(this, entry.body);
+				break;
+			}
+			case ACCOUNT_DELETE: {
+				deleteAccount(acc);
+				return;
+			}
+			case SCHEMA_CREATE: {
+				Schema schema = AccountSerializer.readSchema(new DataInputStream(new ByteArrayInputStream(entry.body)));
+				addSchema(acc, schema);
+				break;
+			}
+			case SCHEMA_UPDATE: {
+				getSchema(acc.getId(), entry.target).updateFromJson(entry.getBodyString());
+				break;
 			}
-		} catch (IOException e) {
-			;
-		} finally {
-			for(Account acc : toDelete) {
-				this.accounts.remove(acc);
+			case SCHEMA_DELETE: {
+				deleteSchema(getSchema(acc.getId(), entry.target));
+				break;
 			}
+			case TABLE_CREATE: {
+				Table table = getSchema(acc.getId(), entry.target).createTableFromJson(entry.getBodyString());
+				addTable(acc, table);
+				break;
+			}
+			case TABLE_UPDATE: {
+				getTable(acc.getId(), entry.target).getSchema().updateTableFromJson(entry.getBodyString());
+				break;
+			}
+			case TABLE_DELETE: {
+				Table table = getTable(acc.getId(), entry.target);
+				deleteTable(table);
+				table.getSchema().deleteTable(entry.target.toString());
+				break;
+			}
+			case COLUMN_CREATE: {
+				Schema schema = getSchema(acc.getId(), entry.target);
+				Column column = addColumn(acc, schema.createColumnFromJson(entry.getBodyString()));
+				acc.addDataSize(getColumnSize(column));
+				schema.translate();
+				break;
+			}
+			case COLUMN_UPDATE: {
+				Schema schema = getColumn(acc.getId(), entry.target).getSchema();
+				schema.updateColumnFromJson(entry.getBodyString());
+				schema.translate();
+				break;
+			}
+			case COLUMN_DELETE: {
+				Column column = getColumn(acc.getId(), entry.target);
+				Schema schema = column.getSchema();
+				deleteColumn(column);
+				schema.deleteColumn(entry.target.toString());
+				schema.translate();
+				break;
+			}
+			case RECORDS_JSON: {
+				dataTable = getTable(acc.getId(), entry.target);
+				dataSize = getTableSize(dataTable);
+				dataTable.append(Record.fromJsonList(entry.getBodyString()), null);
+				break;
+			}
+			case RECORDS_CSV: {
+				Table table = dataTable = getTable(acc.getId(), entry.target);
+				dataSize = getTableSize(dataTable);
+				String body = entry.getBodyString();
+				int paramsEnd = body.indexOf("\n");
+				table.getSchema().createFromCsvLines(table.getName(), body.substring(paramsEnd+1), body.substring(0, paramsEnd).trim());
+				addElements(acc, table.getSchema());
+				break;
+			}
+			case RECORDS_BINARY: {
+				dataTable = getTable(acc.getId(), entry.target);
+				dataSize = getTableSize(dataTable);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.body));
+				int count = in.readInt();
+				ColumnarFormat.Reader reader = new ColumnarFormat.Reader(in);
+				reader.readHeader();
+				dataTable.append(reader.readChunk().subList(0, count), null);
+				break;
+			}
+			case RECORDS_DELETE: {
+				dataTable = getTable(acc.getId(), entry.target);
+				dataSize = getTableSize(dataTable);
+				dataTable.remove();
+				break;
+			}
+			}
+		}
+		catch(Exception e) {
+			LOG.error("Error replaying mutation: " + entry.op + ", Sequence: " + entry.sequence, e);
 		}
+		if(dataTable != null) acc.addDataSize(getTableSize(dataTable) - dataSize);
+		if(acc != null) acc.setLogSequence(entry.sequence);
+	}
+
+	// Delete an account and write it to the archive. Called by the expiry thread.
+	public void expireAccount(Account account) {
+		Lock lock = this.locks.write(account);
+		try {
+			account.setDeleted();
+			this.deleteAccount(account);
+			this.logMutation(account, MutationLog.Op.ACCOUNT_DELETE, account.getId(), new byte[0]);
+		}
+		catch(IOException e) { // The account is not restored from the next snapshot anyway
+			LOG.error("Error logging mutation: " + MutationLog.Op.ACCOUNT_DELETE, e);
+		}
+		finally {
+			lock.unlock();
+		}
+		this.archive.append(account.toJson());
 	}
 
 	//
 	// All existing accounts. An account contains schemas, assets and parameters like name.
+	// Accounts are indexed by id, (lower-cased) name and session id so that each request finds its account in constant time.
+	// The indexes are concurrent maps because accounts are added and looked up from many request threads.
 	//
-	protected List<Account> accounts = new ArrayList<Account>();
-	
+	protected Map<UUID, Account> accounts = new ConcurrentHashMap<UUID, Account>();
+	protected Map<String, Set<Account>> accountsByName = new ConcurrentHashMap<String, Set<Account>>(); // Names are not necessarily unique
+	protected Map<String, Account> accountsBySession = new ConcurrentHashMap<String, Account>();
+
 	public Account getAccount(UUID id) {
-		pruneAccounts();
-		Account acc = this.accounts
-			.stream()
-			.filter(x -> x.getId().equals(id))
-			.findAny()
-			.orElse(null);
+		Account acc = this.accounts.get(id);
 		if(acc == null) return null;
         acc.setAccessed();
+        rehydrateAccount(acc);
     	return acc;
 	}
 	public Account getAccountForName(String name) { // An account must have unique name
-		pruneAccounts();
-		Account acc = this.accounts
-			.stream()
-			.filter(x -> x.getName().equalsIgnoreCase(name))
-			.findAny()
-			.orElse(null);
+		if(name == null) return null;
+		Set<Account> accs = this.accountsByName.get(name.toLowerCase());
+		if(accs == null) return null;
+		Account acc = accs.stream().findAny().orElse(null);
 		if(acc == null) return null;
         acc.setAccessed();
+        rehydrateAccount(acc);
     	return acc;
 	}
 	public Account getAccountForSession(HttpSession session) { // Find an account associated with this session
-		pruneAccounts();
-		Account acc = this.accounts
-				.stream()
-				.filter(x -> x.getSession().equals(session.getId()))
-				.findAny()
-				.orElse(null);
+		Account acc = this.accountsBySession.get(session.getId());
         if(acc == null) return null;
         acc.setAccessed();
+        rehydrateAccount(acc);
     	return acc;
 	}
+	public Account peekAccount(UUID id) { // Find without marking the account as accessed or loading it
+		return this.accounts.get(id);
+	}
+	public Account peekAccountForSession(String sessionId) { // Find without marking the account as accessed or loading it
+		return this.accountsBySession.get(sessionId);
+	}
+	public List<Account> getAccounts() {
+		return new ArrayList<Account>(this.accounts.values());
+	}
 	public Account addAccount(Account account) {
-		this.accounts.add(account);
+		this.accounts.put(account.getId(), account);
+		this.accountsByName.computeIfAbsent(account.getName().toLowerCase(), k -> ConcurrentHashMap.newKeySet()).add(account);
+		if(account.getSession() != null && !account.getSession().isEmpty()) {
+			this.accountsBySession.put(account.getSession(), account);
+		}
+		this.expiry.register(account);
 		return account;
 	}
+	public void deleteAccount(Account account) {
+		if(this.accounts.remove(account.getId()) == null) return; // Already deleted
+		if(account.getDeletionTime() == null) account.setDeleted();
+
+		this.accountsByName.computeIfPresent(account.getName().toLowerCase(), (k, v) -> { v.remove(account); return v.isEmpty() ? null : v; });
+		this.accountsBySession.remove(account.getSession(), account);
+
+		// Release all elements of this account
+		for(Schema schema : getSchemasForAccount(account.getId())) {
+			deleteSchema(schema);
+		}
+		deleteAssets(account);
+		this.hibernation.delete(account);
+	}
+
+	// Load schemas and assets of a hibernated account back into memory
+	protected void rehydrateAccount(Account account) {
+		if(!account.isHibernated()) return;
+		try {
+			if(this.hibernation.rehydrate(account)) {
+				this.expiry.register(account); // Inactivity timeout applies again
+			}
+		}
+		catch(IOException e) {
+			LOG.error("Error rehydrating account: " + account.getId(), e);
+		}
+	}
 
 	//
-	// All existing schemas belonging to different accounts
+	// Metrics. Request metrics are collected for the whole service and for each account.
 	//
-	protected List<Schema> schemas = new ArrayList<Schema>();
+	protected Metrics metrics = new Metrics();
+	public Metrics getMetrics() {
+		return this.metrics;
+	}
 
-	protected List<Pair<Schema, Account>> saRelationship = new ArrayList<Pair<Schema, Account>>();
+	// Per-account metrics are exported only to clients presenting this token (never if it is empty) because they list the ids of all accounts
+	protected String metricsToken = "";
+	@Value("${app.metrics.token:}")
+	public void setMetricsToken(String token) {
+		this.metricsToken = token != null ? token.trim() : "";
+	}
+	public boolean isMetricsToken(String token) {
+		if(this.metricsToken.isEmpty() || token == null) return false;
+		return MessageDigest.isEqual(this.metricsToken.getBytes(StandardCharsets.UTF_8), token.trim().getBytes(StandardCharsets.UTF_8));
+	}
 
-	public Schema getSchema(UUID id) {
-		return this.schemas
-			.stream()
-			.filter(x -> x.getId().equals(id))
-			.findAny()
-			.orElse(null);
+	// All metrics in the Prometheus text format. Without per-account series, account statistics are summed over all accounts.
+	public String getMetricsText(boolean perAccount) {
+		StringBuilder out = new StringBuilder();
+		List<Account> accounts = getAccounts();
+		accounts.sort(Comparator.comparing(x -> x.getId().toString()));
+
+		Map<String, Metrics> global = new LinkedHashMap<String, Metrics>();
+		global.put("", this.metrics);
+
+		Metrics.writeHistograms(out, "sc_request_duration_seconds", "Request duration.", global, Metrics.Family::getDuration);
+		Metrics.writeHistograms(out, "sc_request_size_bytes", "Request body size.", global, Metrics.Family::getRequestSize);
+		Metrics.writeHistograms(out, "sc_response_size_bytes", "Response body size.", global, Metrics.Family::getResponseSize);
+
+		long[] operations = new long[Account.STATISTICS.length];
+		long[] memory = new long[3];
+		for(Account acc : accounts) {
+			LongAdder[] stats = acc.getStatistics();
+			for(int i = 0; i < stats.length; i++) {
+				operations[i] += stats[i].sum();
+			}
+			memory[0] += acc.getDataSize();
+			memory[1] += acc.getAssetSize();
+			memory[2] += acc.getClassSize();
+		}
+		Metrics.writeType(out, "sc_operations_total", "counter", "Operations of all accounts.");
+		for(int i = 0; i < operations.length; i++) {
+			Metrics.writeValue(out, "sc_operations_total", "operation=\"" + Account.STATISTICS[i] + "\"", operations[i]);
+		}
+		Metrics.writeType(out, "sc_memory_bytes", "gauge", "Estimated memory of all accounts.");
+		Metrics.writeValue(out, "sc_memory_bytes", "kind=\"data\"", memory[0]);
+		Metrics.writeValue(out, "sc_memory_bytes", "kind=\"asset\"", memory[1]);
+		Metrics.writeValue(out, "sc_memory_bytes", "kind=\"class\"", memory[2]);
+
+		if(perAccount) {
+			Map<String, Metrics> byAccount = new LinkedHashMap<String, Metrics>();
+			for(Account acc : accounts) {
+				byAccount.put("account=\"" + acc.getId() + "\"", acc.getMetrics());
+			}
+			Metrics.writeHistograms(out, "sc_account_request_duration_seconds", "Request duration per account.", byAccount, Metrics.Family::getDuration);
+			Metrics.writeHistograms(out, "sc_account_request_size_bytes", "Request body size per account.", byAccount, Metrics.Family::getRequestSize);
+			Metrics.writeHistograms(out, "sc_account_response_size_bytes", "Response body size per account.", byAccount, Metrics.Family::getResponseSize);
+
+			Metrics.writeType(out, "sc_account_operations_total", "counter", "Operations per account.");
+			for(Account acc : accounts) {
+				LongAdder[] stats = acc.getStatistics();
+				for(int i = 0; i < stats.length; i++) {
+					Metrics.writeValue(out, "sc_account_operations_total", "account=\"" + acc.getId() + "\",operation=\"" + Account.STATISTICS[i] + "\"", stats[i].sum());
+				}
+			}
+			Metrics.writeType(out, "sc_account_memory_bytes", "gauge", "Estimated memory per account.");
+			for(Account acc : accounts) {
+				Metrics.writeValue(out, "sc_account_memory_bytes", "account=\"" + acc.getId() + "\",kind=\"data\"", acc.getDataSize());
+				Metrics.writeValue(out, "sc_account_memory_bytes", "account=\"" + acc.getId() + "\",kind=\"asset\"", acc.getAssetSize());
+				Metrics.writeValue(out, "sc_account_memory_bytes", "account=\"" + acc.getId() + "\",kind=\"class\"", acc.getClassSize());
+			}
+		}
+
+		Metrics.writeType(out, "sc_accounts", "gauge", "Number of accounts.");
+		Metrics.writeValue(out, "sc_accounts", "state=\"resident\"", accounts.stream().filter(x -> !x.isHibernated()).count());
+		Metrics.writeValue(out, "sc_accounts", "state=\"hibernated\"", accounts.stream().filter(x -> x.isHibernated()).count());
+
+		Metrics.writeType(out, "sc_lock_acquisitions_total", "counter", "Account lock acquisitions.");
+		Metrics.writeValue(out, "sc_lock_acquisitions_total", "mode=\"read\"", this.locks.getReadCount());
+		Metrics.writeValue(out, "sc_lock_acquisitions_total", "mode=\"write\"", this.locks.getWriteCount());
+		Metrics.writeType(out, "sc_lock_wait_seconds_total", "counter", "Time spent waiting for account locks.");
+		Metrics.writeValue(out, "sc_lock_wait_seconds_total", "mode=\"read\"", this.locks.getReadWait() / 1e9);
+		Metrics.writeValue(out, "sc_lock_wait_seconds_total", "mode=\"write\"", this.locks.getWriteWait() / 1e9);
+
+		Metrics.writeType(out, "sc_log_appends_total", "counter", "Entries appended to the mutation log.");
+		Metrics.writeValue(out, "sc_log_appends_total", "", this.log.getAppendCount());
+		Metrics.writeType(out, "sc_log_syncs_total", "counter", "Synchronizations of the mutation log.");
+		Metrics.writeValue(out, "sc_log_syncs_total", "", this.log.getSyncCount());
+		Metrics.writeType(out, "sc_archive_dropped_total", "counter", "Deleted accounts not archived because the queue was full.");
+		Metrics.writeValue(out, "sc_archive_dropped_total", "", this.archive.getDroppedCount());
+		Metrics.writeType(out, "sc_asset_blobs", "gauge", "Distinct asset contents in the asset store.");
+		Metrics.writeValue(out, "sc_asset_blobs", "", this.assetStore.getBlobCount());
+
+		return out.toString();
+	}
+
+	//
+	// Locks. Requests reading an account run in parallel while requests changing it are exclusive.
+	// The lock has to be acquired after the account has been found and before its schemas are looked up.
+	//
+	protected AccountLocks locks = new AccountLocks();
+	public AccountLocks getLocks() {
+		return this.locks;
+	}
+
+	public Lock readLock(Account account) {
+		Lock lock = this.locks.read(account);
+		if(account.isHibernated()) { // Hibernated after it was found
+			lock.unlock();
+			rehydrateAccount(account);
+			lock = this.locks.read(account);
+		}
+		return lock;
+	}
+	public Lock writeLock(Account account) {
+		Lock lock = this.locks.write(account);
+		if(account.isHibernated()) { // Hibernated after it was found
+			lock.unlock();
+			rehydrateAccount(account);
+			lock = this.locks.write(account);
+		}
+		return lock;
+	}
+
+	//
+	// Memory accounting. Each account tracks the estimated memory of its data, assets and classes.
+	// The estimates are updated when elements are added or deleted and when data is appended or deleted.
+	//
+	protected static final long VALUE_SIZE = 24; // Boxed value and its reference
+
+	protected long accountQuota = 0; // Maximum estimated memory of one account (0 means no limit)
+	@Value("${app.quota.accountBytes:0}")
+	public void setAccountQuota(long bytes) {
+		this.accountQuota = bytes;
+	}
+
+	protected boolean quotaTruncate = false; // Uploaded data exceeding the quota is truncated rather than rejected
+	public boolean isQuotaTruncate() {
+		return quotaTruncate;
+	}
+	@Value("${app.quota.truncate:false}")
+	public void setQuotaTruncate(boolean truncate) {
+		this.quotaTruncate = truncate;
+	}
+
+	public long getFootprint(Account account) {
+		return account.getFootprint();
+	}
+
+	// How many bytes can be added to the account without exceeding its quota
+	public long getQuotaRemaining(Account account) {
+		if(this.accountQuota <= 0) return Long.MAX_VALUE;
+		return Math.max(0, this.accountQuota - account.getFootprint());
+	}
+
+	public String getQuotaError(Account account, long size) {
+		return DcError.error(DcErrorCode.GENERAL, "Quota exceeded.", "Account memory: " + account.getFootprint() + " bytes, Requested: " + size + " bytes, Quota: " + this.accountQuota + " bytes.");
+	}
+
+	public long getTableSize(Table table) {
+		if(table.isPrimitive()) return 0;
+		return table.getLength() * table.getSchema().getColumns(table.getName()).size() * VALUE_SIZE;
+	}
+	public long getColumnSize(Column column) {
+		return column.getInput().getLength() * VALUE_SIZE;
+	}
+	public long getSchemaSize(Schema schema) {
+		long size = 0;
+		for(Table table : schema.getTables()) {
+			size += getTableSize(table);
+		}
+		return size;
+	}
+	// Size of a record with values in all columns of the table
+	public long getRecordSize(Table table) {
+		return Math.max(1, table.getSchema().getColumns(table.getName()).size()) * VALUE_SIZE;
+	}
+
+	// Indexes are updated if an indexed property of a registered account is changed
+	protected void accountNameChanged(Account account, String oldName) {
+		if(!this.accounts.containsKey(account.getId())) return;
+		this.accountsByName.computeIfPresent(oldName.toLowerCase(), (k, v) -> { v.remove(account); return v.isEmpty() ? null : v; });
+		this.accountsByName.computeIfAbsent(account.getName().toLowerCase(), k -> ConcurrentHashMap.newKeySet()).add(account);
+	}
+	protected void accountSessionChanged(Account account, String oldSession) {
+		if(!this.accounts.containsKey(account.getId())) return;
+		if(oldSession != null) this.accountsBySession.remove(oldSession, account);
+		if(account.getSession() != null && !account.getSession().isEmpty()) {
+			this.accountsBySession.put(account.getSession(), account);
+		}
+	}
+
+	//
+	// All existing schemas belonging to different accounts. Schemas of each account are kept in the order they were added.
+	//
+	protected Map<UUID, List<Schema>> schemasByAccount = new ConcurrentHashMap<UUID, List<Schema>>();
+
+	public Schema getSchema(UUID accId, UUID id) {
+		Element elem = this.elements.get(id);
+		if(elem == null || elem.table != null || elem.column != null || !elem.account.getId().equals(accId)) return null;
+		return elem.schema;
 	}
 	public Schema getSchemaForName(UUID id, String name) {
 		return getSchemasForAccount(id)
@@ -135,46 +680,168 @@ public class Repository  {
 			.orElse(null);
 	}
 	public List<Schema> getSchemasForAccount(UUID id) {
-		return this.saRelationship
-			.stream()
-			.filter(x -> x.getRight().getId().equals(id))
-			.map(x -> x.getLeft())
-			.collect(Collectors.<Schema>toList());
+		List<Schema> schemas = this.schemasByAccount.get(id);
+		return schemas != null ? new ArrayList<Schema>(schemas) : new ArrayList<Schema>();
 	}
 	public Schema addSchema(Account account, Schema schema) {
 		if(account.getClassLoader() != null) {
 			// Schema will use its account loader which knows how to load classes from this account assets
 			schema.setClassLoader(account.getClassLoader());
 		}
-		this.schemas.add(schema);
-		this.saRelationship.add(Pair.of(schema, account));
+		this.schemasByAccount.computeIfAbsent(account.getId(), k -> new CopyOnWriteArrayList<Schema>()).add(schema);
+
+		this.elements.put(schema.getId(), new Element(account, schema, null, null));
+		account.addDataSize(getSchemaSize(schema));
+		for(Table table : schema.getTables()) {
+			addTable(account, table);
+		}
+		for(Column column : schema.getColumns()) {
+			addColumn(account, column);
+		}
 		return schema;
 	}
 	public void deleteSchema(Schema schema) {
-		this.schemas.remove(schema);
-		this.saRelationship.removeIf(x -> x.getLeft().getId().equals(schema.getId()));
+		Element elem = this.elements.get(schema.getId());
+		if(elem == null) return; // Already deleted
+		elem.account.addDataSize(-getSchemaSize(schema));
+
+		this.schemasByAccount.computeIfPresent(elem.account.getId(), (k, v) -> { v.remove(schema); return v.isEmpty() ? null : v; });
+
+		// Only the elements of this schema are removed from the index
+		for(Table table : schema.getTables()) {
+			this.elements.remove(table.getId());
+		}
+		for(Column column : schema.getColumns()) {
+			this.elements.remove(column.getId());
+		}
+		this.elements.remove(schema.getId());
+		this.changeTrackers.remove(schema.getId());
 	}
 
+	//
+	// State of each schema at its last evaluation (see ChangeTracker). Schemas without a state are evaluated fully.
+	//
+	protected Map<UUID, ChangeTracker> changeTrackers = new ConcurrentHashMap<UUID, ChangeTracker>();
+
+	public ChangeTracker getChangeTracker(Schema schema) {
+		return this.changeTrackers.get(schema.getId());
+	}
+	public void setChangeTracker(Schema schema, ChangeTracker tracker) {
+		if(tracker == null) this.changeTrackers.remove(schema.getId());
+		else this.changeTrackers.put(schema.getId(), tracker);
+	}
+
+	// Evaluate the column by partitions of rows (in parallel if there is a pool) or by the column itself.
+	// Only changed rows are evaluated if possible, and otherwise partitions are used only for parallel evaluation.
+	// If some rows cannot be evaluated by partitions in the same way as by the column, then the whole column is evaluated by itself.
+	protected void evaluateColumn(Column column, ChangeTracker.Plan plan, ForkJoinPool pool) {
+		long from = plan.getFirstRow(column);
+		boolean incremental = from > column.getInput().getIdRange().start;
+		RowEvaluator evaluator = incremental || pool != null ? RowEvaluator.create(column) : null;
+		if(evaluator == null) {
+			column.evaluate();
+			return;
+		}
+		try {
+			evaluator.evaluate(from, pool, this.partitionSize);
+		}
+		catch(RowEvaluator.Unsupported e) { // Values (e.g., nulls or strings) which are evaluated by the column in its own way
+			column.evaluate();
+			return;
+		}
+		if(incremental) plan.setIncremental(column);
+	}
+
+	// Evaluate the columns affected by changes since the last evaluation (or all columns) in the order of their dependencies (independent columns in parallel if requested).
+	// Progress receives the number of evaluated columns and the number of columns to be evaluated. It has to be called under the write lock of the account.
+	public ChangeTracker.Plan evaluateSchema(Account acc, Schema schema, boolean full, boolean parallel, BiConsumer<Integer, Integer> progress) throws Exception {
+		long size = getSchemaSize(schema); // LINK columns can append rows to their output tables
+		try {
+			long start = System.nanoTime();
+			schema.translate(); // Dependencies of edited columns
+			ChangeTracker.Plan plan = ChangeTracker.plan(schema, full ? null : getChangeTracker(schema)); // Changes since the last evaluation
+			List<Column> dirty = plan.getDirty();
+			schema.getColumns().forEach(x -> x.getData().isChanged = x.isDerived() ? dirty.contains(x) : plan.isChanged(x.getInput())); // Mark only affected columns as dirty (non-evaluated)
+			if(progress != null) progress.accept(0, dirty.size());
+			if(parallel) {
+				ForkJoinPool pool = this.parallelEvaluator.getPool();
+				AtomicInteger evaluated = new AtomicInteger();
+				this.parallelEvaluator.evaluate(dirty, x -> evaluateColumn(x, plan, pool), () -> {
+					int count = evaluated.incrementAndGet();
+					if(progress != null) progress.accept(count, dirty.size());
+				});
+			}
+			else {
+				for(int i = 0; i < dirty.size(); i++) {
+					evaluateColumn(dirty.get(i), plan, null); // Dependencies are evaluated before
+					if(progress != null) progress.accept(i + 1, dirty.size());
+				}
+			}
+			plan.setDuration(parallel, System.nanoTime() - start);
+			setChangeTracker(schema, ChangeTracker.capture(schema));
+			acc.schemaEvaluateCount.increment();
+			return plan;
+		}
+		catch(Exception e) {
+			setChangeTracker(schema, null); // Next evaluation is full
+			throw e;
+		}
+		finally {
+			acc.addDataSize(getSchemaSize(schema) - size);
+		}
+	}
+
+	//
+	// Index of all schema elements of all accounts by their id
+	// It has to be updated by all operations which create or delete schemas, tables and columns.
+	//
+	protected Map<UUID, Element> elements = new ConcurrentHashMap<UUID, Element>();
+
 	public Table getTable(UUID accId, UUID id) {
-		for(Schema schema : getSchemasForAccount(accId)) {
-			Table table = schema.getTableById(id.toString());
-			if(table != null) return table;
+		Element elem = this.elements.get(id);
+		if(elem == null || elem.table == null || !elem.account.getId().equals(accId)) return null;
+		return elem.table;
+	}
+	public Table addTable(Account account, Table table) {
+		this.elements.put(table.getId(), new Element(account, table.getSchema(), table, null));
+		return table;
+	}
+	public void deleteTable(Table table) { // Has to be called before the table is deleted from its schema
+		Element elem = this.elements.remove(table.getId());
+		if(elem != null) elem.account.addDataSize(-getTableSize(table));
+		for(Column column : table.getSchema().getColumns(table.getName())) {
+			this.elements.remove(column.getId());
 		}
-		return null;
 	}
 
 	public Column getColumn(UUID accId, UUID id) {
-		for(Schema schema : getSchemasForAccount(accId)) {
-			Column column = schema.getColumnById(id.toString());
-			if(column != null) return column;
+		Element elem = this.elements.get(id);
+		if(elem == null || elem.column == null || !elem.account.getId().equals(accId)) return null;
+		return elem.column;
+	}
+	public Column addColumn(Account account, Column column) {
+		this.elements.put(column.getId(), new Element(account, column.getSchema(), null, column));
+		return column;
+	}
+	public void deleteColumn(Column column) { // Has to be called before the column is deleted from its schema
+		Element elem = this.elements.remove(column.getId());
+		if(elem != null) elem.account.addDataSize(-getColumnSize(column));
+	}
+
+	// Index the tables and columns which were created implicitly by the schema (e.g., during data upload)
+	public void addElements(Account account, Schema schema) {
+		for(Table table : schema.getTables()) {
+			if(!this.elements.containsKey(table.getId())) addTable(account, table);
+		}
+		for(Column column : schema.getColumns()) {
+			if(!this.elements.containsKey(column.getId())) addColumn(account, column);
 		}
-		return null;
 	}
 
 	//
 	// All existing assets belonging to different users
 	//
-	protected Map<Asset, Account> assets = new HashMap<Asset, Account>();
+	protected Map<Asset, Account> assets = new ConcurrentHashMap<Asset, Account>();
 
 	public Asset getAsset(UUID id) {
 		return this.assets.keySet()
@@ -192,8 +859,37 @@ public class Repository  {
 	}
 	public Asset addAsset(Account account, Asset asset) {
 		this.assets.put(asset, account);
+		account.addAssetSize(asset.getSize());
 		return asset;
 	}
+	public void deleteAssets(Account account) {
+		for(Asset asset : getAssetsForAccount(account.getId())) {
+			this.assets.remove(asset);
+			account.addAssetSize(-asset.getSize());
+			this.assetStore.release(asset.getBlob());
+			asset.setBlob(null);
+		}
+	}
+
+	// Replace the content of an asset. The repository takes over the reference to the blob.
+	public void setAssetData(Account account, Asset asset, AssetStore.Blob blob) {
+		AssetStore.Blob old = asset.getBlob();
+		account.addAssetSize((blob != null ? blob.getSize() : 0) - asset.getSize());
+		asset.setBlob(blob);
+		this.assetStore.release(old);
+	}
+
+	//
+	// Asset data is stored once per content and shared by all accounts
+	//
+	protected AssetStore assetStore = new AssetStore();
+	public AssetStore getAssetStore() {
+		return this.assetStore;
+	}
+	@Value("${app.assets.dir:}")
+	public void setAssetDir(String dir) {
+		this.assetStore.setDir(dir == null || dir.trim().isEmpty() ? null : new File(dir));
+	}
 
 	public Repository() {
 		udfDir = "C:/temp/classes/"; // It is common for all schema but can contain subfolders for individual schemas
@@ -271,6 +967,33 @@ public class Repository  {
 		return schema;
 	}
 
+	//
+	// Sample schemas for new accounts. Each sample is built (by reading its files and translating it) only once and kept in serialized form.
+	// A new account gets a copy with new element ids which is read from memory.
+	//
+	protected Map<String, byte[]> templates = new ConcurrentHashMap<String, byte[]>();
+
+	public Schema createSampleSchema(String name) {
+		byte[] template = this.templates.computeIfAbsent(name, k -> {
+			Schema schema = buildSampleSchema2(k);
+			schema.translate();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try {
+				AccountSerializer.writeSchema(new DataOutputStream(bytes), schema);
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return bytes.toByteArray();
+		});
+		try {
+			return AccountSerializer.copySchema(new DataInputStream(new ByteArrayInputStream(template)));
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	public static Schema buildSampleSchema2(String name) {
 		if(name == null || name.isEmpty()) name = "Sales";
 		
@@ -333,13 +1056,16 @@ class Account {
 		return creationTime;
 	}
 
-	private Instant accessTime;
+	private volatile Instant accessTime;
 	public Instant getAccessTime() {
 		return accessTime;
 	}
 	public void setAccessed() {
 		this.accessTime = Instant.now();
 	}
+	void setAccessTime(Instant accessTime) { // Used to restore an existing account
+		this.accessTime = accessTime;
+	}
 
 	private Instant changeTime;
 	public Instant getChangeTime() {
@@ -349,8 +1075,11 @@ class Account {
 		this.changeTime = Instant.now();
 		this.accessTime = this.changeTime;
 	}
+	void setChangeTime(Instant changeTime) { // Used to restore an existing account
+		this.changeTime = changeTime;
+	}
 
-	private Instant deletionTime;
+	private volatile Instant deletionTime;
 	public Instant getDeletionTime() {
 		return deletionTime;
 	}
@@ -358,13 +1087,71 @@ class Account {
 		this.deletionTime = Instant.now();
 	}
 
+	//
+	// Estimated memory (bytes) of table data, assets and loaded classes of this account
+	//
+	private final AtomicLong dataSize = new AtomicLong();
+	public long getDataSize() {
+		return dataSize.get();
+	}
+	public void addDataSize(long delta) {
+		this.dataSize.addAndGet(delta);
+	}
+
+	private final AtomicLong assetSize = new AtomicLong();
+	public long getAssetSize() {
+		return assetSize.get();
+	}
+	public void addAssetSize(long delta) {
+		this.assetSize.addAndGet(delta);
+	}
+
+	private final AtomicLong classSize = new AtomicLong();
+	public long getClassSize() {
+		return classSize.get();
+	}
+	public void addClassSize(long delta) {
+		this.classSize.addAndGet(delta);
+	}
+
+	// Memory released by hibernation does not count
+	public long getFootprint() {
+		return getDataSize() + getAssetSize() + getClassSize();
+	}
+
+	// Taken by requests reading (shared) or changing (exclusive) this account (see AccountLocks)
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Current deadline of this account in the expiry queue
+	volatile Object expiryDeadline;
+
+	// Schemas and assets of a hibernated account are stored on disk rather than in memory
+	private volatile boolean hibernated;
+	public boolean isHibernated() {
+		return hibernated;
+	}
+	void setHibernated(boolean hibernated) {
+		this.hibernated = hibernated;
+	}
+
+	// Sequence number of the last logged mutation of this account
+	private volatile long logSequence;
+	public long getLogSequence() {
+		return logSequence;
+	}
+	public void setLogSequence(long logSequence) {
+		this.logSequence = logSequence;
+	}
+
 	// Session id (in future, there can be many sessions for one account)
 	private String session = "";
 	public String getSession() {
 		return session;
 	}
 	public void setSession(String session) {
+		String oldSession = this.session;
 		this.session = session;
+		this.repository.accountSessionChanged(this, oldSession);
 	}
 
 	// User/account name
@@ -373,7 +1160,9 @@ class Account {
 		return name;
 	}
 	public void setName(String name) {
+		String oldName = this.name;
 		this.name = name;
+		this.repository.accountNameChanged(this, oldName);
 	}
 	
 	// This class loader knows how to get evaluator classes/instances from the assets of this account. 
@@ -393,30 +1182,52 @@ class Account {
 	}
 	
 	//
-	// Statistics
+	// Statistics. Adders are incremented by concurrent requests without contention.
 	//
-	public int schemaCreateCount = 0;
-	public int schemaUpdateCount = 0;
-	public int schemaDeleteCount = 0;
-	public int schemaEvaluateCount = 0;
-
-	public int tableCreateCount = 0;
-	public int tableUpdateCount = 0;
-	public int tableDeleteCount = 0;
-
-	public int tableUploadCount = 0;
-	public int tableEvaluateCount = 0;
-	public int tableEmptyCount = 0;
+	public final LongAdder schemaCreateCount = new LongAdder();
+	public final LongAdder schemaUpdateCount = new LongAdder();
+	public final LongAdder schemaDeleteCount = new LongAdder();
+	public final LongAdder schemaEvaluateCount = new LongAdder();
+
+	public final LongAdder tableCreateCount = new LongAdder();
+	public final LongAdder tableUpdateCount = new LongAdder();
+	public final LongAdder tableDeleteCount = new LongAdder();
+
+	public final LongAdder tableUploadCount = new LongAdder();
+	public final LongAdder tableEvaluateCount = new LongAdder();
+	public final LongAdder tableEmptyCount = new LongAdder();
+
+	public final LongAdder columnCreateCount = new LongAdder();
+	public final LongAdder columnUpdateCount = new LongAdder();
+	public final LongAdder columnDeleteCount = new LongAdder();
+
+	// Names of the statistics in the order of getStatistics
+	static final String[] STATISTICS = {
+		"schema_create", "schema_update", "schema_delete", "schema_evaluate",
+		"table_create", "table_update", "table_delete",
+		"table_upload", "table_evaluate", "table_empty",
+		"column_create", "column_update", "column_delete"
+	};
+	public LongAdder[] getStatistics() {
+		return new LongAdder[] {
+			schemaCreateCount, schemaUpdateCount, schemaDeleteCount, schemaEvaluateCount,
+			tableCreateCount, tableUpdateCount, tableDeleteCount,
+			tableUploadCount, tableEvaluateCount, tableEmptyCount,
+			columnCreateCount, columnUpdateCount, columnDeleteCount
+		};
+	}
 
-	public int columnCreateCount = 0;
-	public int columnUpdateCount = 0;
-	public int columnDeleteCount = 0;
+	// Request metrics of this account
+	private final Metrics metrics = new Metrics();
+	public Metrics getMetrics() {
+		return metrics;
+	}
 
 	public String toJson() {
 		// Trick to avoid backslashing double quotes: use backticks and then replace it at the end 
 		String jid = "`id`: `" + this.getId() + "`";
 
-		String jname = "`name`: `" + this.getName() + "`";
+		String jname = "\"name\": " + JSONObject.quote(this.getName()); // User input is escaped to get valid json
 		
 		String jcreation_time = "`creationTime`: `" + this.getCreationTime() + "`";
 		String jaccess_time = "`accessTime`: `" + this.getAccessTime() + "`";
@@ -425,7 +1236,7 @@ class Account {
 
 		String jsession = "`session`: `" + this.getSession() + "`";
 
-		String json = jid + ", " + jname + ", " + jcreation_time + ", " + jaccess_time + ", " + jchange_time + ", " + jdeletion_time + ", " + jsession;
+		String json = jcreation_time + ", " + jaccess_time + ", " + jchange_time + ", " + jdeletion_time + ", " + jsession;
 
 		//
 		// Statistics
@@ -434,9 +1245,12 @@ class Account {
 		String jtablestats = "`tableCreateCount`: " + this.tableCreateCount + ", `tableUpdateCount`: " + this.tableUpdateCount + ", `tableDeleteCount`: " + this.tableDeleteCount + ", `tableUploadCount`: " + this.tableUploadCount + ", `tableEvaluateCount`: " + this.tableEvaluateCount + ", `tableEmptyCount`: " + this.tableEmptyCount;
 		String jcolumntstats = "`columnCreateCount`: " + this.columnCreateCount + ", `columnUpdateCount`: " + this.columnUpdateCount + ", `columnDeleteCount`: " + this.columnDeleteCount;
 		
-		String jstats = jschemastats + ", " + jtablestats + ", " + jcolumntstats;
+		String jmemorystats = "`dataSize`: " + this.getDataSize() + ", `assetSize`: " + this.getAssetSize() + ", `classSize`: " + this.getClassSize();
+
+		String jstats = jschemastats + ", " + jtablestats + ", " + jcolumntstats + ", " + jmemorystats;
 
-		return ("{" + json + ", " + jstats + "}").replace('`', '"');
+		// The name is already escaped so that backticks in it are not replaced
+		return "{" + jid.replace('`', '"') + ", " + jname + ", " + (json + ", " + jstats).replace('`', '"') + "}";
 	}
 
 	public Account(Repository repository) {
@@ -444,8 +1258,13 @@ class Account {
 	}
 
 	public Account(Repository repository, String name) {
-		this.id = UUID.randomUUID();
-		this.creationTime = Instant.now();
+		this(repository, UUID.randomUUID(), Instant.now(), name);
+	}
+
+	// Used to restore an existing account
+	public Account(Repository repository, UUID id, Instant creationTime, String name) {
+		this.id = id;
+		this.creationTime = creationTime;
 		this.accessTime = this.creationTime;
 		this.changeTime = this.creationTime;
 
@@ -460,6 +1279,21 @@ class Account {
 
 }
 
+// Entry of the element index. Only one of table or column is set for tables and columns, and none of them for schemas.
+class Element {
+	final Account account;
+	final Schema schema;
+	final Table table;
+	final Column column;
+
+	Element(Account account, Schema schema, Table table, Column column) {
+		this.account = account;
+		this.schema = schema;
+		this.table = table;
+		this.column = column;
+	}
+}
+
 class Asset {
 
 	private final UUID id;
@@ -485,17 +1319,27 @@ class Asset {
 		this.account = account;
 	}
 	
-	// Asset content
-	private byte[] data;
-	public byte[] getData() {
-		return data;
+	// Asset content shared with other assets having the same content
+	private AssetStore.Blob blob;
+	public AssetStore.Blob getBlob() {
+		return blob;
+	}
+	void setBlob(AssetStore.Blob blob) { // References are managed by the repository
+		this.blob = blob;
 	}
-	public void setData(byte[] data) {
-		this.data = data;
+	public ByteBuffer getData() { // Read-only view of the (memory-mapped) content
+		return blob != null ? blob.getData() : null;
+	}
+	public long getSize() {
+		return blob != null ? blob.getSize() : 0;
 	}
 	
 	 public Asset() {
-		this.id = UUID.randomUUID();
+		this(UUID.randomUUID());
+	}
+
+	public Asset(UUID id) { // Used to restore an existing asset
+		this.id = id;
 	}
 
 }
@@ -0,0 +1,219 @@
+package org.conceptoriented.sc.rest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Snapshot of the whole repository state in a binary file.
+ * 
+ * File format: magic, version, snapshot time, mutation log sequence, number of accounts followed by one length-prefixed block per account (see AccountSerializer).
+ * Accounts are serialized one by one while requests continue to be processed, so a snapshot is consistent per account.
+ * The file is written to a temporary file which then replaces the previous snapshot so that a failure never damages the last snapshot.
+ * If any account cannot be serialized then the snapshot is abandoned and the previous snapshot with the whole log is retained.
+ * During restore, blocks are read sequentially and deserialized by a pool of threads.
+ * All mutations logged before the snapshot has started are in the snapshot, so the mutation log is truncated up to this point after the snapshot.
+ */
+class RepositorySnapshot {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RepositorySnapshot.class.getName());
+
+	static final int MAGIC = 0x5343534E; // SCSN
+	static final int VERSION = 2;
+
+	private final Repository repository;
+
+	protected File file; // No snapshots if null
+	public File getFile() {
+		return file;
+	}
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	protected long sequence; // Mutation log sequence of the restored snapshot
+	public long getSequence() {
+		return sequence;
+	}
+
+	protected Duration period = Duration.ofMinutes(5);
+	public void setPeriod(Duration period) {
+		this.period = period;
+	}
+
+	//
+	// Write
+	//
+
+	// Write the current state of the repository to the file. Returns the number of stored accounts.
+	public synchronized int take() throws IOException {
+		if(this.file == null) return 0;
+		Instant start = Instant.now();
+		long sequence = this.repository.log.getNextSequence(); // Mutations before it have been applied and hence will be stored
+
+		File tmp = new File(this.file.getPath() + ".tmp");
+		if(this.file.getAbsoluteFile().getParentFile() != null) this.file.getAbsoluteFile().getParentFile().mkdirs();
+
+		List<Account> accounts = this.repository.getAccounts();
+		int count = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(start.toEpochMilli());
+			out.writeLong(sequence);
+
+			out.writeInt(accounts.size());
+			for(Account acc : accounts) {
+				byte[] block;
+				try {
+					block = AccountSerializer.toBytes(this.repository, acc);
+				}
+				catch(Exception e) { // The log is truncated only after a complete snapshot, so the previous snapshot and the log still have this account
+					throw new IOException("Error serializing account: " + acc.getId(), e);
+				}
+				out.writeInt(block.length);
+				out.write(block);
+				count++;
+			}
+		}
+		catch(IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.repository.truncateLog(sequence);
+
+		LOG.info("Snapshot written. Accounts: {}, File size: {}, Time: {} ms", count, this.file.length(), Duration.between(start, Instant.now()).toMillis());
+		return count;
+	}
+
+	//
+	// Read
+	//
+
+	// Restore all accounts stored in the file. Returns the number of restored accounts.
+	public int restore() throws IOException {
+		if(this.file == null || !this.file.exists()) return 0;
+		Instant start = Instant.now();
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Semaphore inFlight = new Semaphore(threads * 4); // Limit the number of blocks read but not yet restored
+
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		int failed = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file), 1 << 16))) {
+			if(in.readInt() != MAGIC) throw new IOException("Not a snapshot file: " + this.file);
+			int version = in.readInt();
+			if(version != VERSION) throw new IOException("Unsupported snapshot version: " + version);
+			in.readLong(); // Snapshot time
+			this.sequence = in.readLong();
+
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				byte[] block = new byte[in.readInt()];
+				in.readFully(block);
+				if(block.length == 0) continue;
+
+				inFlight.acquireUninterruptibly();
+				futures.add(pool.submit(() -> {
+					try {
+						AccountSerializer.fromBytes(this.repository, block);
+					}
+					catch(IOException e) {
+						throw new IllegalStateException(e);
+					}
+					finally {
+						inFlight.release();
+					}
+				}));
+			}
+
+			for(Future<?> future : futures) {
+				try {
+					future.get();
+				}
+				catch(ExecutionException e) {
+					LOG.error("Error restoring account.", e.getCause());
+					failed++;
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Restore interrupted.", e);
+				}
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+
+		int restored = futures.size() - failed;
+		LOG.info("Snapshot restored. Accounts: {}, Failed: {}, Threads: {}, Time: {} ms", restored, failed, threads, Duration.between(start, Instant.now()).toMillis());
+		return restored;
+	}
+
+	//
+	// Periodic snapshots
+	//
+
+	private ScheduledExecutorService scheduler;
+
+	public synchronized void start() {
+		if(this.file == null || this.scheduler != null) return;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "repository-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long millis = this.period.toMillis();
+		this.scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				take();
+			}
+			catch(Exception e) {
+				LOG.error("Error writing snapshot.", e);
+			}
+		}, millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	// Stop periodic snapshots and write the last one
+	public void stop() {
+		synchronized(this) {
+			if(this.scheduler == null) return;
+			this.scheduler.shutdownNow();
+			this.scheduler = null;
+		}
+		try {
+			take();
+		}
+		catch(Exception e) {
+			LOG.error("Error writing snapshot.", e);
+		}
+	}
+
+	public RepositorySnapshot(Repository repository) {
+		this.repository = repository;
+	}
+
+}
@@ -0,0 +1,312 @@
+package org.conceptoriented.sc.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.conceptoriented.sc.core.*;
+
+import net.objecthunter.exp4j.Expression;
+import net.objecthunter.exp4j.ExpressionBuilder;
+import net.objecthunter.exp4j.ValidationResult;
+
+/**
+ * Evaluation of a derived column by partitions of rows which are processed in parallel in a fork/join pool.
+ *
+ * It is possible for CALC columns whose formula is arithmetic on columns of the same table, because the value of each row depends only on this row,
+ * and for ACCU columns whose update formula has the form <code>[out] + expression</code> and whose group is a link column of the fact table.
+ * For ACCU, the increments of the facts are computed by partitions and then added to the initial values of their groups in the order of the facts,
+ * so that the values are the same as if the update formula were evaluated fact by fact.
+ * Values are computed only where they are the same as those of the column itself: all inputs are numbers and all results are finite numbers.
+ * Otherwise (e.g., null or string inputs or division by zero) Unsupported is thrown, and the column has to be evaluated by itself.
+ * Other columns (for example, with paths, other kinds or non-double output) are not supported and have to be evaluated by the column itself.
+ */
+class RowEvaluator {
+
+	private static final Pattern ACCU_SUM = Pattern.compile("^\\s*\\[out\\]\\s*\\+(.+)$", Pattern.DOTALL);
+	private static final Pattern PATH = Pattern.compile("^\\s*\\[([^\\]]+)\\]\\s*$");
+
+	/**
+	 * Rows for which partitioned evaluation might give other values than the column itself.
+	 */
+	public static class Unsupported extends RuntimeException {
+		public Unsupported(String message) {
+			super(message);
+		}
+	}
+
+	protected final Column column;
+
+	protected final Table table; // Partitioned table (input table for CALC and fact table for ACCU)
+
+	protected final Formula formula; // Value (CALC) or increment (ACCU) computed from rows of the partitioned table
+
+	protected final Formula init; // Initial value of ACCU computed from rows of the group table
+
+	protected final String group; // Link column of the fact table with the group row of ACCU
+
+	// Evaluator of the column or null if the column cannot be evaluated by partitions of rows
+	public static RowEvaluator create(Column column) {
+		Table output = column.getOutput();
+		if(output == null || !"Double".equals(output.getName())) return null;
+		try {
+			if(column.getKind() == DcColumnKind.CALC) {
+				ColumnDefinitionCalc definition = column.getDefinitionCalc();
+				if(definition == null || definition.getFormula() == null) return null;
+				if(definition.getFormulaKind() != ExpressionKind.EXP4J) return null; // Other kinds of expressions are not parsed by Formula
+
+				Table table = column.getInput();
+				return new RowEvaluator(column, table, new Formula(definition.getFormula(), getColumnNames(table)), null, null);
+			}
+			else if(column.getKind() == DcColumnKind.ACCU) {
+				ColumnDefinitionAccu definition = column.getDefinitionAccu();
+				if(definition == null || definition.getAccuFormula() == null) return null;
+				if(definition.getFormulaKind() != ExpressionKind.EXP4J) return null;
+				if(definition.getFinFormula() != null && !definition.getFinFormula().trim().isEmpty()) return null;
+
+				Matcher sum = ACCU_SUM.matcher(definition.getAccuFormula());
+				if(!sum.matches() || sum.group(1).contains("[out]")) return null; // Not associative
+				if(isSum(sum.group(1))) return null; // [out] + a + b is (out + a) + b rather than out + (a + b)
+				Table facts = column.getSchema().getTable(definition.getAccuTable());
+				if(facts == null || definition.getAccuPath() == null) return null;
+				Matcher path = PATH.matcher(definition.getAccuPath());
+				if(!path.matches()) return null; // Only a single link column
+				String group = path.group(1).trim();
+				List<String> names = getColumnNames(facts);
+				if(!names.contains(group)) return null;
+
+				String init = definition.getInitFormula() == null || definition.getInitFormula().trim().isEmpty() ? "0.0" : definition.getInitFormula();
+				return new RowEvaluator(column, facts, new Formula(sum.group(1), names), new Formula(init, getColumnNames(column.getInput())), group);
+			}
+		}
+		catch(IllegalArgumentException e) { // Formula cannot be evaluated here
+			return null;
+		}
+		return null;
+	}
+
+	// Whether the expression has additive operators outside of parentheses
+	protected static boolean isSum(String expression) {
+		int depth = 0;
+		for(int i = 0; i < expression.length(); i++) {
+			char c = expression.charAt(i);
+			if(c == '(') depth++;
+			else if(c == ')') depth--;
+			else if(depth == 0 && (c == '+' || c == '-')) return true;
+		}
+		return false;
+	}
+
+	protected static List<String> getColumnNames(Table table) {
+		return table.getSchema().getColumns(table.getName()).stream().map(x -> x.getName()).collect(Collectors.<String>toList());
+	}
+
+	// Evaluate rows starting from the specified row (CALC only) by partitions of the specified size. Without a pool, partitions are evaluated by the current thread.
+	// If Unsupported is thrown then some values might have been changed and the column has to be evaluated by itself.
+	public void evaluate(long from, ForkJoinPool pool, int partitionSize) {
+		if(this.init == null) {
+			Range range = this.table.getIdRange();
+			partition(Math.max(from, range.start), range.end, partitionSize, (start, end) -> calc(start, end), (a, b) -> null, pool);
+		}
+		else {
+			Range groups = this.column.getInput().getIdRange();
+			double[] values = new double[(int) (groups.end - groups.start)];
+			partition(groups.start, groups.end, partitionSize, (start, end) -> init(start, end, groups.start, values), (a, b) -> null, pool);
+
+			Range facts = this.table.getIdRange();
+			List<Increments> increments = partition(facts.start, facts.end, partitionSize, (start, end) -> accumulate(start, end), RowEvaluator::concat, pool);
+			for(Increments partial : increments) { // In the order of facts
+				for(int i = 0; i < partial.size; i++) {
+					long group = partial.groups[i];
+					if(group < groups.start || group >= groups.end) throw new Unsupported("Group not found: " + group);
+					int index = (int) (group - groups.start);
+					values[index] = checkResult(values[index] + partial.values[i]);
+				}
+			}
+
+			partition(groups.start, groups.end, partitionSize, (start, end) -> store(start, end, groups.start, values), (a, b) -> null, pool);
+		}
+		this.column.getData().isChanged = false;
+	}
+
+	protected Void calc(long start, long end) {
+		Expression expression = this.formula.newExpression(); // Expressions are not thread-safe
+		List<Record> records = this.table.read(new Range(start, end));
+		double[] values = new double[records.size()];
+		for(int i = 0; i < records.size(); i++) {
+			values[i] = this.formula.evaluate(expression, records.get(i));
+		}
+		ColumnData data = this.column.getData(); // Values are stored only if the whole partition can be evaluated
+		for(int i = 0; i < values.length; i++) {
+			data.setValue(start + i, values[i]);
+		}
+		return null;
+	}
+
+	// Increments of facts with their groups in the order of facts
+	protected static class Increments {
+		protected final long[] groups;
+		protected final double[] values;
+		protected int size;
+
+		Increments(int capacity) {
+			this.groups = new long[capacity];
+			this.values = new double[capacity];
+		}
+	}
+
+	protected List<Increments> accumulate(long start, long end) {
+		Expression expression = this.formula.newExpression();
+		List<Record> records = this.table.read(new Range(start, end));
+		Increments increments = new Increments(records.size());
+		for(Record record : records) {
+			Object group = record.get(this.group);
+			if(!(group instanceof Number)) throw new Unsupported("Fact without a group.");
+			increments.groups[increments.size] = ((Number) group).longValue();
+			increments.values[increments.size] = this.formula.evaluate(expression, record);
+			increments.size++;
+		}
+		List<Increments> result = new ArrayList<Increments>(1);
+		result.add(increments);
+		return result;
+	}
+
+	// Partitions are merged left to right so the order of facts is retained
+	protected static List<Increments> concat(List<Increments> left, List<Increments> right) {
+		List<Increments> result = new ArrayList<Increments>(left.size() + right.size());
+		result.addAll(left);
+		result.addAll(right);
+		return result;
+	}
+
+	// Initial values of the groups in the range
+	protected Void init(long start, long end, long first, double[] values) {
+		Expression expression = this.init.newExpression();
+		List<Record> records = this.column.getInput().read(new Range(start, end));
+		for(int i = 0; i < records.size(); i++) {
+			values[(int) (start + i - first)] = this.init.evaluate(expression, records.get(i));
+		}
+		return null;
+	}
+
+	protected Void store(long start, long end, long first, double[] values) {
+		ColumnData data = this.column.getData();
+		for(long row = start; row < end; row++) {
+			data.setValue(row, values[(int) (row - first)]);
+		}
+		return null;
+	}
+
+	protected static double checkResult(double value) {
+		if(Double.isNaN(value) || Double.isInfinite(value)) throw new Unsupported("Result is not a finite number.");
+		return value;
+	}
+
+	protected interface Leaf<T> {
+		T apply(long start, long end);
+	}
+
+	// Split the range into partitions, compute each of them, and merge their results
+	protected static <T> T partition(long start, long end, int size, Leaf<T> leaf, BinaryOperator<T> merge, ForkJoinPool pool) {
+		if(end <= start) return leaf.apply(start, start);
+		if(pool == null) {
+			T result = null;
+			for(long from = start; from < end; from += size) {
+				T partial = leaf.apply(from, Math.min(end, from + size));
+				result = result == null ? partial : merge.apply(result, partial);
+			}
+			return result;
+		}
+		Partitions<T> task = new Partitions<T>(start, end, size, leaf, merge);
+		return ForkJoinTask.getPool() == pool ? task.invoke() : pool.invoke(task); // Within a column task of the same pool, partitions are forked by the worker
+	}
+
+	protected static class Partitions<T> extends RecursiveTask<T> {
+		private final long start, end;
+		private final int size;
+		private final Leaf<T> leaf;
+		private final BinaryOperator<T> merge;
+
+		@Override
+		protected T compute() {
+			if(this.end - this.start <= this.size) return this.leaf.apply(this.start, this.end);
+			long middle = this.start + (this.end - this.start) / 2;
+			Partitions<T> left = new Partitions<T>(this.start, middle, this.size, this.leaf, this.merge);
+			Partitions<T> right = new Partitions<T>(middle, this.end, this.size, this.leaf, this.merge);
+			left.fork();
+			T result = right.compute();
+			return this.merge.apply(left.join(), result);
+		}
+
+		Partitions(long start, long end, int size, Leaf<T> leaf, BinaryOperator<T> merge) {
+			this.start = start;
+			this.end = end;
+			this.size = size;
+			this.leaf = leaf;
+			this.merge = merge;
+		}
+	}
+
+	protected RowEvaluator(Column column, Table table, Formula formula, Formula init, String group) {
+		this.column = column;
+		this.table = table;
+		this.formula = formula;
+		this.init = init;
+		this.group = group;
+	}
+
+	/**
+	 * Formula where column names are replaced by variables.
+	 */
+	protected static class Formula {
+
+		protected final String expression;
+
+		protected final List<String> columns = new ArrayList<String>(); // Column of each variable v0, v1, ...
+
+		public Expression newExpression() {
+			ExpressionBuilder builder = new ExpressionBuilder(this.expression);
+			for(int i = 0; i < this.columns.size(); i++) {
+				builder.variable("v" + i);
+			}
+			return builder.build();
+		}
+
+		// Only numbers are inputs and only finite numbers are results since other values are processed by the column in its own way
+		public double evaluate(Expression expression, Record record) {
+			for(int i = 0; i < this.columns.size(); i++) {
+				Object value = record.get(this.columns.get(i));
+				if(!(value instanceof Number)) throw new Unsupported("Value of " + this.columns.get(i) + " is not a number.");
+				expression.setVariable("v" + i, ((Number) value).doubleValue());
+			}
+			try {
+				return checkResult(expression.evaluate());
+			}
+			catch(ArithmeticException e) { // For example, division by zero
+				throw new Unsupported(e.getMessage());
+			}
+		}
+
+		public Formula(String formula, List<String> tableColumns) {
+			this.expression = RecordFilter.toVariables(formula, tableColumns, this.columns);
+			Expression expression;
+			try {
+				expression = newExpression();
+			}
+			catch(RuntimeException e) { // exp4j reports syntax errors as unchecked exceptions
+				throw new IllegalArgumentException("Invalid formula: " + e.getMessage());
+			}
+			ValidationResult validation = expression.validate(false);
+			if(!validation.isValid()) {
+				throw new IllegalArgumentException("Invalid formula: " + String.join(" ", validation.getErrors()));
+			}
+		}
+	}
+
+}
@@ -1,13 +1,27 @@
 package org.conceptoriented.sc.rest;
 
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.GZIPOutputStream;
 import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServletRequest;
@@ -17,8 +31,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpRequest;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -28,10 +44,14 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -62,6 +82,180 @@ public class ScRestService {
 		return ResponseEntity.ok("DataCommandr");
 	}
 
+	//
+	// Streaming
+	//
+
+	protected interface ChunkConsumer {
+		void accept(List<Record> records) throws IOException;
+	}
+
+	// Read records of a table with row ids in [start, end) in chunks. The read lock is held only while a chunk is read (not while it is sent) so that writers are not blocked by slow clients.
+	// The table is looked up for each chunk because it can be deleted or reloaded (after hibernation) meanwhile.
+	// If a filter is specified then only records satisfying it are passed to the consumer.
+	protected void readChunks(Account acc, UUID id, long start, long end, int chunkSize, RecordFilter filter, ChunkConsumer consumer) throws IOException {
+		while(true) {
+			List<Record> records;
+			Lock lock = repository.readLock(acc);
+			try {
+				Table table = repository.getTable(acc.getId(), id);
+				if(table == null) return;
+				Range ids = table.getIdRange();
+				start = Math.max(start, ids.start);
+				long last = Math.min(end, ids.end);
+				if(start >= last) return;
+				records = table.read(new Range(start, Math.min(start + chunkSize, last)));
+				start += chunkSize;
+			}
+			finally {
+				lock.unlock();
+			}
+			if(filter != null) records = filter.filter(records);
+			if(!records.isEmpty()) consumer.accept(records);
+		}
+	}
+
+	//
+	// Pagination. A page is specified by a cursor (returned with the previous page) or by an offset, and an optional limit.
+	// A cursor is an opaque token with the table id and the row id where the next page starts so it remains valid when records are appended.
+	//
+
+	// Row ids [start, end) of one response
+	protected static class Page {
+		long start;
+		long end; // Long.MAX_VALUE means up to the end of the table
+		long total; // Number of records in the table
+		String next; // Cursor of the next page or null if this is the last page
+
+		public ResponseEntity.BodyBuilder headers(ResponseEntity.BodyBuilder builder) {
+			builder.header("X-Total-Count", String.valueOf(this.total));
+			if(this.next != null) builder.header("X-Next-Cursor", this.next);
+			return builder;
+		}
+	}
+
+	protected static Page getPage(Table table, Long offset, Long limit, String cursor) {
+		if(offset != null && offset < 0) throw new IllegalArgumentException("Offset must not be negative.");
+		if(limit != null && limit < 0) throw new IllegalArgumentException("Limit must not be negative.");
+		if(offset != null && cursor != null) throw new IllegalArgumentException("Either offset or cursor can be specified.");
+
+		Range ids = table.getIdRange();
+		Page page = new Page();
+		page.total = table.getLength();
+		if(cursor != null) {
+			page.start = Math.max(decodeCursor(cursor, table.getId()), ids.start);
+		}
+		else {
+			page.start = ids.start + (offset != null ? offset : 0);
+		}
+		page.end = limit != null && limit < Long.MAX_VALUE - page.start ? page.start + limit : Long.MAX_VALUE;
+		if(page.end < ids.end) {
+			page.next = encodeCursor(table.getId(), page.end);
+		}
+		return page;
+	}
+
+	protected static String encodeCursor(UUID table, long row) {
+		String token = table + ":" + row;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+	}
+	protected static long decodeCursor(String cursor, UUID table) {
+		try {
+			String token = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			int sep = token.lastIndexOf(':');
+			if(sep < 0 || !token.substring(0, sep).equals(table.toString())) throw new IllegalArgumentException("Cursor does not belong to this table.");
+			long row = Long.parseLong(token.substring(sep + 1));
+			if(row < 0) throw new IllegalArgumentException("Invalid cursor.");
+			return row;
+		}
+		catch(NumberFormatException e) { // Base64 errors are also illegal arguments
+			throw new IllegalArgumentException("Invalid cursor.");
+		}
+	}
+
+	//
+	// Projection. Only the requested columns (a comma separated list of names) are serialized.
+	//
+
+	protected static List<String> getColumnNames(Table table) {
+		return table.getSchema().getColumns(table.getName()).stream().map(x -> x.getName()).collect(Collectors.<String>toList());
+	}
+
+	protected static List<String> getProjection(Table table, String columns) {
+		List<String> names = getColumnNames(table);
+		List<String> projection = new ArrayList<String>();
+		for(String column : columns.split(",")) {
+			String name = column.trim();
+			if(name.isEmpty()) continue;
+			if(!names.contains(name)) throw new IllegalArgumentException("Column not found: " + name);
+			if(!projection.contains(name)) projection.add(name);
+		}
+		if(projection.isEmpty()) throw new IllegalArgumentException("No columns specified.");
+		return projection;
+	}
+
+	// Json object with the values of the specified columns in the same format as Record.toJsonMap
+	protected static String toJson(Record record, List<String> columns) {
+		StringBuilder sb = new StringBuilder("{");
+		for(String column : columns) {
+			if(sb.length() > 1) sb.append(", ");
+			sb.append(JSONObject.quote(column)).append(": ");
+			Object value = record.get(column);
+			if(value == null) {
+				sb.append("null");
+			}
+			else if(value instanceof Double || value instanceof Float) {
+				double d = ((Number) value).doubleValue();
+				sb.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.valueOf(value));
+			}
+			else if(value instanceof Number || value instanceof Boolean) {
+				sb.append(value);
+			}
+			else {
+				sb.append(JSONObject.quote(value.toString()));
+			}
+		}
+		return sb.append("}").toString();
+	}
+
+	// Whether gzip is among the accepted encodings (and not excluded by q=0)
+	protected static boolean acceptsGzip(String acceptEncoding) {
+		if(acceptEncoding == null) return false;
+		for(String encoding : acceptEncoding.split(",")) {
+			String[] parts = encoding.trim().split(";");
+			String name = parts[0].trim();
+			if(!name.equalsIgnoreCase("gzip")) continue;
+			boolean excluded = false;
+			for(int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim().replace(" ", "");
+				if(param.startsWith("q=")) {
+					try {
+						excluded = Double.parseDouble(param.substring(2)) <= 0;
+					}
+					catch(NumberFormatException e) {
+						excluded = true;
+					}
+				}
+			}
+			if(!excluded) return true;
+		}
+		return false;
+	}
+
+	protected static StreamingResponseBody stream(String body) {
+		return out -> out.write(body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	//
+	// Metrics
+	//
+
+	@RequestMapping(method = RequestMethod.GET, value = "/metrics", produces = "text/plain; version=0.0.4") // Prometheus text format
+	public ResponseEntity<String> getMetrics(@RequestHeader(value = "Authorization", required = false) String authorization) {
+		String token = authorization != null && authorization.startsWith("Bearer ") ? authorization.substring("Bearer ".length()) : null;
+		return ResponseEntity.ok(repository.getMetricsText(repository.isMetricsToken(token))); // Series per account only with the configured token
+	}
+
 	//
 	// Account, user, session, authentication
 	//
@@ -79,16 +273,28 @@ public class ScRestService {
 			// Create a new account and associate it with this session (the old account if any will be garbage collected)
 			acc = new Account(repository, "test@host.com");
 			acc.setSession(session.getId());
-			repository.addAccount(acc);
-			LOG.info("Method: {}, ACCOUNT CREATED. Account: {}, IP address: {}, Host: {}", "GET/account", acc.getId(), request.getRemoteAddr(), request.getRemoteHost());
 
-			//Schema schema1 = Repository.buildSampleSchema1("My Schema");
-			//schema1.translate();
-			//repository.addSchema(acc, schema1);
+			Lock lock = repository.getLocks().write(acc); // Not visible to other requests until the sample schema is added
+			try {
+				repository.addAccount(acc);
+				LOG.info("Method: {}, ACCOUNT CREATED. Account: {}, IP address: {}, Host: {}", "GET/account", acc.getId(), request.getRemoteAddr(), request.getRemoteHost());
+
+				//Schema schema1 = Repository.buildSampleSchema1("My Schema");
+				//schema1.translate();
+				//repository.addSchema(acc, schema1);
 
-			Schema schema2 = Repository.buildSampleSchema2("Sales");
-			schema2.translate();
-			repository.addSchema(acc, schema2);
+				Schema schema2 = repository.createSampleSchema("Sales"); // Copy of a cached template
+				repository.addSchema(acc, schema2);
+
+				repository.logAccount(acc);
+			}
+			catch(IOException e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error logging account.", e.getMessage()));
+			}
+			finally {
+				lock.unlock();
+			}
 
 		}
 		
@@ -108,17 +314,23 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}, Account: {}", "GET/schemas", acc.getId());
 
-		List<Schema> schemas = repository.getSchemasForAccount(acc.getId());
+		Lock lock = repository.readLock(acc);
+		try {
+			List<Schema> schemas = repository.getSchemasForAccount(acc.getId());
 
-		String jelems = "";
-		for(Schema elem : schemas) {
-			String jelem = elem.toJson();
-			jelems += jelem + ", ";
+			String jelems = "";
+			for(Schema elem : schemas) {
+				String jelem = elem.toJson();
+				jelems += jelem + ", ";
+			}
+			if(jelems.length() > 2) {
+				jelems = jelems.substring(0, jelems.length()-2);
+			}
+			return ResponseEntity.ok( "{\"data\": [" + jelems + "]}" );
 		}
-		if(jelems.length() > 2) {
-			jelems = jelems.substring(0, jelems.length()-2);
+		finally {
+			lock.unlock();
 		}
-		return ResponseEntity.ok( "{\"data\": [" + jelems + "]}" );
 	}
 	@RequestMapping(value = "/schemas", method = RequestMethod.POST, produces = "application/json") // Create one (or several) schemas
 	public ResponseEntity<String> /* of List<Schema> */ createSchemas(HttpSession session, @RequestBody String body) { 
@@ -128,24 +340,37 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}, Account: {}", "POST/schemas", acc.getId());
 
-		Schema schema = null;
+		Lock lock = repository.writeLock(acc);
 		try {
-			schema = Schema.fromJson(body); // Main operation
-			acc.schemaCreateCount++;
-		}
-		catch(DcError e) {
-			LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
-			return ResponseEntity.ok(e.toJson());
+			Schema schema = null;
+			try {
+				schema = Schema.fromJson(body); // Main operation
+				acc.schemaCreateCount.increment();
+			}
+			catch(DcError e) {
+				LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
+				return ResponseEntity.ok(e.toJson());
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error creating schema.", e.getMessage()));
+			}
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error creating schema.", ""));
+
+			repository.addSchema(acc, schema);
+			try {
+				repository.logSchema(acc, schema);
+			}
+			catch(IOException e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error logging schema.", e.getMessage()));
+			}
+
+			return ResponseEntity.ok( schema.toJson() );
+		}
+		finally {
+			lock.unlock();
 		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error creating schema.", e.getMessage()));
-		}
-		if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error creating schema.", ""));
-
-		repository.addSchema(acc, schema);
-
-		return ResponseEntity.ok( schema.toJson() );
 	}
 
 	// Operations with one schema
@@ -158,10 +383,16 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}/{}, Account: {}", "GET/schemas", id, acc.getId());
 
-		Schema schema = repository.getSchema(UUID.fromString(id));
-		if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+		Lock lock = repository.readLock(acc);
+		try {
+			Schema schema = repository.getSchema(acc.getId(), UUID.fromString(id));
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
 
-		return ResponseEntity.ok( schema.toJson() );
+			return ResponseEntity.ok( schema.toJson() );
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 	@RequestMapping(value = "/schemas/{id}", method = RequestMethod.PUT, produces = "application/json") // Update an existing schema
 	public ResponseEntity<String> /* of Schema */ updateSchema(HttpSession session, @PathVariable String id, @RequestBody String body) { 
@@ -171,24 +402,31 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}/{}, Account: {}", "PUT/schemas", id, acc.getId());
 
-		Schema schema = repository.getSchema(UUID.fromString(id));
-		if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+		Lock lock = repository.writeLock(acc);
+		try {
+			Schema schema = repository.getSchema(acc.getId(), UUID.fromString(id));
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
 
 
-		try {
-			schema.updateFromJson(body); // Main operation
-			acc.schemaUpdateCount++;
-		}
-		catch(DcError e) {
-			LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
-			return ResponseEntity.ok(e.toJson());
+			try {
+				schema.updateFromJson(body); // Main operation
+				repository.logMutation(acc, MutationLog.Op.SCHEMA_UPDATE, schema.getId(), body);
+				acc.schemaUpdateCount.increment();
+			}
+			catch(DcError e) {
+				LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
+				return ResponseEntity.ok(e.toJson());
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error updating schema.", e.getMessage()));
+			}
+
+			return ResponseEntity.ok( schema.toJson() );
 		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error updating schema.", e.getMessage()));
+		finally {
+			lock.unlock();
 		}
-
-		return ResponseEntity.ok( schema.toJson() );
 	}
 	@RequestMapping(value = "/schemas/{id}", method = RequestMethod.DELETE, produces = "application/json") // Delete the specified schema (and all its elements)
 	public ResponseEntity<String> deleteSchema(HttpSession session, @PathVariable String id) { 
@@ -198,19 +436,26 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}/{}, Account: {}", "DELETE/schemas", id, acc.getId());
 
-		Schema schema = repository.getSchema(UUID.fromString(id));
-		if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
-		
+		Lock lock = repository.writeLock(acc);
 		try {
-			repository.deleteSchema(schema); // Main operation
-			acc.schemaDeleteCount++;
+			Schema schema = repository.getSchema(acc.getId(), UUID.fromString(id));
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+		
+			try {
+				repository.deleteSchema(schema); // Main operation
+				repository.logMutation(acc, MutationLog.Op.SCHEMA_DELETE, schema.getId(), "");
+				acc.schemaDeleteCount.increment();
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error deleting schema.", e.getMessage()));
+			}
+
+			return ResponseEntity.ok(null);
 		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error deleting schema.", e.getMessage()));
+		finally {
+			lock.unlock();
 		}
-
-		return ResponseEntity.ok(null);
 	}
 	
 	// Tables of one schema
@@ -223,18 +468,24 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}, Account: {}", "GET/schemas/id/tables", acc.getId());
 
-		Schema schema = repository.getSchema(UUID.fromString(id));
-		if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
-
-		String jelems = "";
-		for(Table elem : schema.getTables()) {
-			String jelem = elem.toJson();
-			jelems += jelem + ", ";
-		}
-		if(jelems.length() > 2) {
-			jelems = jelems.substring(0, jelems.length()-2);
+		Lock lock = repository.readLock(acc);
+		try {
+			Schema schema = repository.getSchema(acc.getId(), UUID.fromString(id));
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+
+			String jelems = "";
+			for(Table elem : schema.getTables()) {
+				String jelem = elem.toJson();
+				jelems += jelem + ", ";
+			}
+			if(jelems.length() > 2) {
+				jelems = jelems.substring(0, jelems.length()-2);
+			}
+			return ResponseEntity.ok( "{\"data\": [" + jelems + "]}" );
+		}
+		finally {
+			lock.unlock();
 		}
-		return ResponseEntity.ok( "{\"data\": [" + jelems + "]}" );
 	}
 	@RequestMapping(value = "/schemas/{id}/tables", method = RequestMethod.POST, produces = "application/json") // Create one (or several) tables. Return 201 Status Code and (optionally) the newly created id.
 	public ResponseEntity<String> /* of List<Table> */ createTables(HttpSession session, @PathVariable String id, @RequestBody String body) {
@@ -244,24 +495,32 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}, Account: {}", "POST/schemas/id/tables", acc.getId());
 
-		Schema schema = repository.getSchema(UUID.fromString(id));
-		if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
-
-		Table table = null;
+		Lock lock = repository.writeLock(acc);
 		try {
-			table = schema.createTableFromJson(body); // Main operation
-			acc.tableCreateCount++;
-		}
-		catch(DcError e) {
-			LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
-			return ResponseEntity.ok(e.toJson());
-		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error creating table.", e.getMessage()));
+			Schema schema = repository.getSchema(acc.getId(), UUID.fromString(id));
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+
+			Table table = null;
+			try {
+				table = schema.createTableFromJson(body); // Main operation
+				repository.addTable(acc, table);
+				repository.logMutation(acc, MutationLog.Op.TABLE_CREATE, schema.getId(), table.toJson());
+				acc.tableCreateCount.increment();
+			}
+			catch(DcError e) {
+				LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
+				return ResponseEntity.ok(e.toJson());
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error creating table.", e.getMessage()));
+			}
+
+			return ResponseEntity.ok( table.toJson() );
+		}
+		finally {
+			lock.unlock();
 		}
-
-		return ResponseEntity.ok( table.toJson() );
 	}
 	
 	// Columns of one schema 
@@ -274,18 +533,24 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}, Account: {}", "GET/schemas/id/columns", acc.getId());
 
-		Schema schema = repository.getSchema(UUID.fromString(id));
-		if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
-
-		String jelems = "";
-		for(Column elem : schema.getColumns()) {
-			String jelem = elem.toJson();
-			jelems += jelem + ", ";
-		}
-		if(jelems.length() > 2) {
-			jelems = jelems.substring(0, jelems.length()-2);
+		Lock lock = repository.readLock(acc);
+		try {
+			Schema schema = repository.getSchema(acc.getId(), UUID.fromString(id));
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+
+			String jelems = "";
+			for(Column elem : schema.getColumns()) {
+				String jelem = elem.toJson();
+				jelems += jelem + ", ";
+			}
+			if(jelems.length() > 2) {
+				jelems = jelems.substring(0, jelems.length()-2);
+			}
+			return ResponseEntity.ok( "{\"data\": [" + jelems + "]}" );
+		}
+		finally {
+			lock.unlock();
 		}
-		return ResponseEntity.ok( "{\"data\": [" + jelems + "]}" );
 	}
 	@RequestMapping(value = "/schemas/{id}/columns", method = RequestMethod.POST, produces = "application/json") // Create one (or several) several columns
 	public ResponseEntity<String> /* of List<Column> */ createColumns(HttpSession session, @PathVariable String id, @RequestBody String body) { 
@@ -295,25 +560,34 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}, Account: {}", "POST/schemas/id/columns", acc.getId());
 
-		Schema schema = repository.getSchema(UUID.fromString(id));
-		if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
-
-		Column column = null;
+		Lock lock = repository.writeLock(acc);
 		try {
-			column = schema.createColumnFromJson(body); // Main operation
-			schema.translate();
-			acc.columnCreateCount++;
+			Schema schema = repository.getSchema(acc.getId(), UUID.fromString(id));
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+
+			Column column = null;
+			try {
+				column = schema.createColumnFromJson(body); // Main operation
+				repository.addColumn(acc, column);
+				acc.addDataSize(repository.getColumnSize(column));
+				schema.translate();
+				repository.logMutation(acc, MutationLog.Op.COLUMN_CREATE, schema.getId(), column.toJson());
+				acc.columnCreateCount.increment();
+			}
+			catch(DcError e) {
+				LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
+				return ResponseEntity.ok(e.toJson());
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error creating column.", e.getMessage()));
+			}
+		
+			return ResponseEntity.ok( column.toJson() );
 		}
-		catch(DcError e) {
-			LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
-			return ResponseEntity.ok(e.toJson());
+		finally {
+			lock.unlock();
 		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error creating column.", e.getMessage()));
-		}
-		
-		return ResponseEntity.ok( column.toJson() );
 	}
 	@RequestMapping(value = "/schemas/{id}/columns/statuses", method = RequestMethod.GET, produces = "application/json") // Read status of all columns in the schema
 	public ResponseEntity<String> /* with List<DcError> */ getStatuses(HttpSession session, @PathVariable String id) {
@@ -323,46 +597,108 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}, Account: {}", "GET/schemas/id/columns/statuses", acc.getId());
 
-		Schema schema = repository.getSchema(UUID.fromString(id));
-		if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
-
-		String jelems = "";
-		for(Column elem : schema.getColumns()) {
-			DcError error = elem.getThisOrDependenceError();
-			String jelem = error != null ? error.toJson() : "undefined";
-			jelems += "\"" + elem.getId() + "\"" + ": " + jelem + ", ";
-		}
-		if(jelems.length() > 2) {
-			jelems = jelems.substring(0, jelems.length()-2);
+		Lock lock = repository.readLock(acc);
+		try {
+			Schema schema = repository.getSchema(acc.getId(), UUID.fromString(id));
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+
+			String jelems = "";
+			for(Column elem : schema.getColumns()) {
+				DcError error = elem.getThisOrDependenceError();
+				String jelem = error != null ? error.toJson() : "undefined";
+				jelems += "\"" + elem.getId() + "\"" + ": " + jelem + ", ";
+			}
+			if(jelems.length() > 2) {
+				jelems = jelems.substring(0, jelems.length()-2);
+			}
+			return ResponseEntity.ok( "{" + jelems + "}" );
+		}
+		finally {
+			lock.unlock();
 		}
-		return ResponseEntity.ok( "{" + jelems + "}" );
 	}
 	
 	// Operations of one schema 
 
 	@RequestMapping(value = "/schemas/{id}/evaluate", method = RequestMethod.GET, produces = "application/json") // Evaluate data in the schema
-	public ResponseEntity<String> /* DcError */ evaluate(HttpSession session, @PathVariable String id) {
+	public ResponseEntity<String> /* DcError */ evaluate(HttpSession session, @PathVariable String id, @RequestParam(value = "full", defaultValue = "false") boolean full, @RequestParam(value = "parallel", defaultValue = "false") boolean parallel) {
 		Account acc = repository.getAccountForSession(session);
 		if(acc == null) {
 			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session));
 		}
 		LOG.debug("Method: {}, Account: {}", "GET/schemas/id/evaluate", acc.getId());
 
-		Schema schema = repository.getSchema(UUID.fromString(id));
-		if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+		Lock lock = repository.writeLock(acc);
+		try {
+			Schema schema = repository.getSchema(acc.getId(), UUID.fromString(id));
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
+
+			ChangeTracker.Plan plan;
+			try {
+				plan = repository.evaluateSchema(acc, schema, full, parallel, null); // Evaluate
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error evaluating data.", e.getMessage()));
+			}
+
+			return ResponseEntity.ok( "{ \"data\": [], " + plan.toJson() + " }" );
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@RequestMapping(value = "/schemas/{id}/evaluate/async", method = RequestMethod.POST, produces = "application/json") // Start evaluation of data in the schema in background
+	public ResponseEntity<String> /* Job */ evaluateAsync(HttpSession session, @PathVariable String id, @RequestParam(value = "full", defaultValue = "false") boolean full, @RequestParam(value = "parallel", defaultValue = "false") boolean parallel) {
+		Account acc = repository.getAccountForSession(session);
+		if(acc == null) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session));
+		}
+		LOG.debug("Method: {}, Account: {}", "POST/schemas/id/evaluate/async", acc.getId());
 
+		Lock lock = repository.readLock(acc);
 		try {
-			schema.getColumns().forEach(x -> x.getData().isChanged = true); // Mark all columns in the schema as new (dirty, non-evaluated)
-			schema.translate();
-			schema.evaluate(); // Evaluate
-			acc.schemaEvaluateCount++;
+			Schema schema = repository.getSchema(acc.getId(), UUID.fromString(id));
+			if(schema == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Schema not found.", ""));
 		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error evaluating data.", e.getMessage()));
+		finally {
+			lock.unlock();
+		}
+
+		EvaluationJobs.Job job = repository.getEvaluation().submit(acc, UUID.fromString(id), full, parallel);
+		if(job == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Too many evaluation jobs.", "Try again later."));
+
+		return ResponseEntity.status(HttpStatus.ACCEPTED).body( job.toJson() );
+	}
+
+	@RequestMapping(value = "/evaluate/async/{requestId}/status", method = RequestMethod.GET, produces = "application/json") // Status and progress of an evaluation job
+	public ResponseEntity<String> /* Job */ getEvaluationStatus(HttpSession session, @PathVariable String requestId) {
+		Account acc = repository.getAccountForSession(session);
+		if(acc == null) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session));
+		}
+		LOG.debug("Method: {}, Account: {}", "GET/evaluate/async/id/status", acc.getId());
+
+		EvaluationJobs.Job job = repository.getEvaluation().getJob(UUID.fromString(requestId));
+		if(job == null || !job.getAccountId().equals(acc.getId())) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Job not found.", ""));
+
+		return ResponseEntity.ok( job.toJson() );
+	}
+
+	@RequestMapping(value = "/evaluate/async/{requestId}/result", method = RequestMethod.GET, produces = "application/json") // Result of a finished evaluation job (the status while it is not finished)
+	public ResponseEntity<String> /* DcError */ getEvaluationResult(HttpSession session, @PathVariable String requestId) {
+		Account acc = repository.getAccountForSession(session);
+		if(acc == null) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session));
 		}
+		LOG.debug("Method: {}, Account: {}", "GET/evaluate/async/id/result", acc.getId());
+
+		EvaluationJobs.Job job = repository.getEvaluation().getJob(UUID.fromString(requestId));
+		if(job == null || !job.getAccountId().equals(acc.getId())) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Job not found.", ""));
 
-		return ResponseEntity.ok( "{ \"data\": [] }" );
+		if(!job.isFinished()) return ResponseEntity.status(HttpStatus.ACCEPTED).body( job.toJson() );
+		return ResponseEntity.ok( job.getResult() );
 	}
 
 	//
@@ -377,10 +713,16 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}/{}, Account: {}", "GET/tables", id, acc.getId());
 
-		Table table = repository.getTable(acc.getId(), UUID.fromString(id));
-		if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
+		Lock lock = repository.readLock(acc);
+		try {
+			Table table = repository.getTable(acc.getId(), UUID.fromString(id));
+			if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
 
-		return ResponseEntity.ok( table.toJson() );
+			return ResponseEntity.ok( table.toJson() );
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 	@RequestMapping(value = "/tables/{id}", method = RequestMethod.PUT, produces = "application/json") // Update an existing table
 	public ResponseEntity<String> /* of Table */ updateTable(HttpSession session, @PathVariable String id, @RequestBody String body) { 
@@ -390,25 +732,32 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}/{}, Account: {}", "PUT/tables", id, acc.getId());
 
-		Table table = repository.getTable(acc.getId(), UUID.fromString(id));
-		if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
-
-		Schema schema = table.getSchema();
-
+		Lock lock = repository.writeLock(acc);
 		try {
-			schema.updateTableFromJson(body); // Main operation
-			acc.tableUpdateCount++;
-		}
-		catch(DcError e) {
-			LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
-			return ResponseEntity.ok(e.toJson());
+			Table table = repository.getTable(acc.getId(), UUID.fromString(id));
+			if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
+
+			Schema schema = table.getSchema();
+
+			try {
+				schema.updateTableFromJson(body); // Main operation
+				repository.logMutation(acc, MutationLog.Op.TABLE_UPDATE, table.getId(), body);
+				acc.tableUpdateCount.increment();
+			}
+			catch(DcError e) {
+				LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
+				return ResponseEntity.ok(e.toJson());
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error updating table.", e.getMessage()));
+			}
+
+			return ResponseEntity.ok( table.toJson() );
+		}
+		finally {
+			lock.unlock();
 		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error updating table.", e.getMessage()));
-		}
-
-		return ResponseEntity.ok( table.toJson() );
 	}
 	@RequestMapping(value = "/tables/{id}", method = RequestMethod.DELETE, produces = "application/json") // Delete the specified table (and its columns)
 	public ResponseEntity<String> deleteTable(HttpSession session, @PathVariable String id) { 
@@ -418,125 +767,500 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}/{}, Account: {}", "DELETE/tables", id, acc.getId());
 
-		Table table = repository.getTable(acc.getId(), UUID.fromString(id));
-		if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
+		Lock lock = repository.writeLock(acc);
+		try {
+			Table table = repository.getTable(acc.getId(), UUID.fromString(id));
+			if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
 
-		Schema schema = table.getSchema();
+			Schema schema = table.getSchema();
 
-		try {
-			schema.deleteTable(id); // Main operation
-			acc.tableDeleteCount++;
+			try {
+				repository.deleteTable(table);
+				schema.deleteTable(id); // Main operation
+				repository.logMutation(acc, MutationLog.Op.TABLE_DELETE, table.getId(), "");
+				acc.tableDeleteCount.increment();
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error deleting table.", e.getMessage()));
+			}
+
+			return ResponseEntity.ok(null);
 		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error deleting table.", e.getMessage()));
+		finally {
+			lock.unlock();
 		}
-
-		return ResponseEntity.ok(null);
 	}
 
 	// Records from one table
 
 	@RequestMapping(value = "/tables/{id}/data/json", method = RequestMethod.GET, produces = "application/json") // Read records from one table with the specified id
-	public ResponseEntity<String> /* of List<Records> */ getRecordsJson(HttpSession session, @PathVariable String id) { 
+	public ResponseEntity<StreamingResponseBody> /* of List<Records> */ getRecordsJson(HttpSession session, @PathVariable String id, @RequestParam(value = "columns", required = false) String columns, @RequestParam(value = "where", required = false) String where, @RequestParam(value = "offset", required = false) Long offset, @RequestParam(value = "limit", required = false) Long limit, @RequestParam(value = "cursor", required = false) String cursor) { 
 		Account acc = repository.getAccountForSession(session);
 		if(acc == null) {
-			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session));
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON_UTF8).body(stream(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session)));
 		}
 		LOG.debug("Method: {}, Account: {}", "GET/tables/id/data/json", acc.getId());
 
-		Table table = repository.getTable(acc.getId(), UUID.fromString(id));
-		if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
-
-		Range range = null; // All records
-		String data = "";
-		for(Record record : table.read(range)) {
-			String data_elem = record.toJsonMap();
-			data += data_elem + ", ";
+		List<String> projection;
+		RecordFilter filter;
+		Page page;
+		Lock lock = repository.readLock(acc);
+		try {
+			Table table = repository.getTable(acc.getId(), UUID.fromString(id));
+			if(table == null) return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(stream(DcError.error(DcErrorCode.GENERAL, "Table not found.", "")));
+
+			projection = columns != null ? getProjection(table, columns) : null; // All columns by default
+			filter = where != null ? new RecordFilter(where, getColumnNames(table)) : null; // Compiled once for all records
+			page = getPage(table, offset, limit, cursor);
+		}
+		catch(IllegalArgumentException e) {
+			return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(stream(DcError.error(DcErrorCode.GENERAL, "Invalid request parameters.", e.getMessage())));
+		}
+		finally {
+			lock.unlock();
+		}
+
+		// Records are written to the response while they are read so that the whole response is never in memory
+		return page.headers(ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8)).body(out -> {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+			writer.write("{\"data\": [");
+			boolean[] first = { true };
+			readChunks(acc, UUID.fromString(id), page.start, page.end, repository.getExportChunkSize(), filter, records -> {
+				for(Record record : records) {
+					if(!first[0]) writer.write(", ");
+					writer.write(projection != null ? toJson(record, projection) : record.toJsonMap());
+					first[0] = false;
+				}
+			});
+			writer.write("], \"total\": " + page.total);
+			if(page.next != null) writer.write(", \"next\": \"" + page.next + "\"");
+			writer.write("}");
+			writer.flush();
+		});
+	}
+	@RequestMapping(value = "/tables/{id}/data/csv", method = RequestMethod.GET, produces = "text/csv") // Read records from one table with the specified id
+	public ResponseEntity<StreamingResponseBody> /* of List<Records> */ getRecordsCsv(HttpSession session, @PathVariable String id, @RequestParam(value = "columns", required = false) String columns, @RequestParam(value = "where", required = false) String where, @RequestParam(value = "offset", required = false) Long offset, @RequestParam(value = "limit", required = false) Long limit, @RequestParam(value = "cursor", required = false) String cursor, @RequestParam(value = "chunkSize", required = false) Integer chunkSize, @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding) { 
+		Account acc = repository.getAccountForSession(session);
+		if(acc == null) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON_UTF8).body(stream(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session)));
 		}
-		if(data.length() > 2) {
-			data = data.substring(0, data.length()-2);
+		LOG.debug("Method: {}, Account: {}", "GET/tables/id/data/csv", acc.getId());
+
+		List<String> projection;
+		RecordFilter filter;
+		Page page;
+		Lock lock = repository.readLock(acc);
+		try {
+			Table table = repository.getTable(acc.getId(), UUID.fromString(id));
+			if(table == null) return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(stream(DcError.error(DcErrorCode.GENERAL, "Table not found.", "")));
+
+			projection = columns != null ? getProjection(table, columns) : getColumnNames(table);
+			filter = where != null ? new RecordFilter(where, getColumnNames(table)) : null; // Compiled once for all records
+			page = getPage(table, offset, limit, cursor);
+		}
+		catch(IllegalArgumentException e) {
+			return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(stream(DcError.error(DcErrorCode.GENERAL, "Invalid request parameters.", e.getMessage())));
+		}
+		finally {
+			lock.unlock();
+		}
+
+		// Rows are written (and compressed if the client accepts it) while they are read so that the whole response is never in memory
+		boolean gzip = acceptsGzip(acceptEncoding);
+		ResponseEntity.BodyBuilder builder = page.headers(ResponseEntity.ok().contentType(new MediaType("text", "csv", StandardCharsets.UTF_8)));
+		if(gzip) builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+		int size = chunkSize != null && chunkSize > 0 ? chunkSize : repository.getExportChunkSize();
+		return builder.body(out -> {
+			OutputStream stream = gzip ? new GZIPOutputStream(out, 1 << 16) : out;
+			Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+			writer.write(String.join(",", projection));
+			writer.write("\n");
+			readChunks(acc, UUID.fromString(id), page.start, page.end, size, filter, records -> {
+				for(Record record : records) {
+					writer.write(record.toCsv(projection));
+					writer.write("\n");
+				}
+			});
+			writer.flush();
+			if(gzip) ((GZIPOutputStream) stream).finish();
+		});
+	}
+	@RequestMapping(value = "/tables/{id}/data/binary", method = RequestMethod.GET, produces = "application/octet-stream") // Read records from one table in columnar binary format (see ColumnarFormat)
+	public ResponseEntity<StreamingResponseBody> /* of List<Records> */ getRecordsBinary(HttpSession session, @PathVariable String id, @RequestParam(value = "columns", required = false) String columns, @RequestParam(value = "where", required = false) String where, @RequestParam(value = "offset", required = false) Long offset, @RequestParam(value = "limit", required = false) Long limit, @RequestParam(value = "cursor", required = false) String cursor, @RequestParam(value = "chunkSize", required = false) Integer chunkSize, @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding) { 
+		Account acc = repository.getAccountForSession(session);
+		if(acc == null) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON_UTF8).body(stream(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session)));
 		}
-		return ResponseEntity.ok( "{\"data\": [" + data + "]}" );
+		LOG.debug("Method: {}, Account: {}", "GET/tables/id/data/binary", acc.getId());
+
+		String[] names;
+		byte[] types;
+		RecordFilter filter;
+		Page page;
+		Lock lock = repository.readLock(acc);
+		try {
+			Table table = repository.getTable(acc.getId(), UUID.fromString(id));
+			if(table == null) return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(stream(DcError.error(DcErrorCode.GENERAL, "Table not found.", "")));
+
+			List<String> projection = columns != null ? getProjection(table, columns) : getColumnNames(table);
+			names = projection.toArray(new String[projection.size()]);
+			types = new byte[names.length];
+			for(int i = 0; i < names.length; i++) {
+				types[i] = ColumnarFormat.getType(table.getSchema().getColumn(table.getName(), names[i]));
+			}
+			filter = where != null ? new RecordFilter(where, getColumnNames(table)) : null; // Compiled once for all records
+			page = getPage(table, offset, limit, cursor);
+		}
+		catch(IllegalArgumentException e) {
+			return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(stream(DcError.error(DcErrorCode.GENERAL, "Invalid request parameters.", e.getMessage())));
+		}
+		finally {
+			lock.unlock();
+		}
+
+		// Each chunk read from the table is written as one chunk of the stream
+		boolean gzip = acceptsGzip(acceptEncoding);
+		ResponseEntity.BodyBuilder builder = page.headers(ResponseEntity.ok().contentType(MediaType.APPLICATION_OCTET_STREAM));
+		if(gzip) builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+		int size = chunkSize != null && chunkSize > 0 ? chunkSize : repository.getExportChunkSize();
+		return builder.body(out -> {
+			OutputStream stream = gzip ? new GZIPOutputStream(out, 1 << 16) : out;
+			ColumnarFormat.Writer writer = new ColumnarFormat.Writer(new BufferedOutputStream(stream, 1 << 16));
+			writer.writeHeader(names, types);
+			readChunks(acc, UUID.fromString(id), page.start, page.end, size, filter, records -> writer.writeChunk(records));
+			writer.writeEnd();
+			if(gzip) ((GZIPOutputStream) stream).finish();
+		});
 	}
-	@RequestMapping(value = "/tables/{id}/data/csv", method = RequestMethod.GET, produces = "application/json") // Read records from one table with the specified id
-	public ResponseEntity<String> /* of List<Records> */ getRecordsCsv(HttpSession session, @PathVariable String id) { 
+	@RequestMapping(value = "/tables/{id}/data/json", method = RequestMethod.POST, produces = "application/json") // Create records in a table with a given id
+	public ResponseEntity<String> /* of List<Records> */ writeRecordsJson(HttpSession session, @PathVariable String id, HttpServletRequest request) {
 		Account acc = repository.getAccountForSession(session);
 		if(acc == null) {
 			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session));
 		}
-		LOG.debug("Method: {}, Account: {}", "GET/tables/id/data/csv", acc.getId());
-
-		Table table = repository.getTable(acc.getId(), UUID.fromString(id));
-		if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
+		LOG.debug("Method: {}, Account: {}", "POST/tables/id/data/json", acc.getId());
 
-		Range range = null; // All records
-		List<String> columns = table.getSchema().getColumns(table.getName()).stream().map(x -> x.getName()).collect(Collectors.<String>toList());
-		String header = "";
-		for(String col : columns) {
-			header += col + ",";
+		UUID tableId = UUID.fromString(id);
+		Lock lock = repository.readLock(acc);
+		try {
+			Table table = repository.getTable(acc.getId(), tableId);
+			if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
+		}
+		finally {
+			lock.unlock();
+		}
+
+		// The body (an array of objects) is tokenized and records are appended in batches so that the whole upload is never in memory.
+		// Batches are parsed without a lock and only appending a batch is exclusive.
+		long start = System.nanoTime();
+		long offset = 0; // Index of the next record in the body
+		long appended = 0;
+		long truncated = 0;
+		int batchSize = repository.getIngestBatchSize();
+		List<Record> batch = new ArrayList<Record>(Math.min(batchSize, 1024));
+		try (JsonParser parser = JSON_FACTORY.createParser(request.getInputStream())) {
+			if(parser.nextToken() != JsonToken.START_ARRAY) {
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error appending data.", "Offset: 0, Appended: 0, Error: Array of records expected."));
+			}
+			while(true) {
+				Record record;
+				try {
+					record = readRecord(parser);
+				}
+				catch(Exception e) { // The batch with the bad record is not appended
+					LOG.error("Exception",  e);
+					return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error appending data.", "Offset: " + offset + ", Appended: " + appended + ", Error: " + e.getMessage()));
+				}
+
+				if(record != null) {
+					offset++;
+					if(truncated > 0) { // Quota has been reached
+						truncated++;
+						continue;
+					}
+					batch.add(record);
+					if(batch.size() < batchSize) continue;
+				}
+
+				if(!batch.isEmpty()) {
+					long count = appendRecords(acc, tableId, batch, MutationLog.Op.RECORDS_JSON, n -> {
+						String body = "[" + batch.subList(0, n).stream().map(x -> x.toJsonMap()).collect(Collectors.joining(", ")) + "]"; // What is really appended
+						return body.getBytes(StandardCharsets.UTF_8);
+					});
+					appended += count;
+					if(count < batch.size()) { // Quota has been reached
+						if(!repository.isQuotaTruncate()) {
+							return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Quota exceeded.", "Offset: " + (offset - batch.size()) + ", Appended: " + appended + ", Quota: " + repository.getQuotaRemaining(acc) + " bytes remaining."));
+						}
+						truncated += batch.size() - count;
+					}
+					batch.clear();
+				}
+				if(record == null) break;
+			}
+			acc.tableUploadCount.increment();
 		}
-		if(header.length() >= 1) header = header.substring(0, header.length()-1);
-		header += "\n";
+		catch(Exception e) {
+			LOG.error("Exception",  e);
+			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error appending data.", "Offset: " + offset + ", Appended: " + appended + ", Error: " + e.getMessage()));
+		}
+
+		return ResponseEntity.ok(ingestResult(start, appended, truncated));
+	}
+
+	// Response of a successful upload with its throughput
+	protected static String ingestResult(long start, long appended, long truncated) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		String json = "`appended`: " + appended + ", `seconds`: " + seconds + ", `recordsPerSecond`: " + (seconds > 0 ? Math.round(appended / seconds) : 0);
+		if(truncated > 0) json += ", `truncated`: " + truncated;
+		return "{" + json.replace('`', '"') + "}";
+	}
 
-		String data = "";
-		for(Record record : table.read(range)) {
-			String data_elem = record.toCsv(columns);
-			data += data_elem + "\n";
+	protected static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	// Read the next record (a flat object) from the array or return null at the end of the array
+	protected static Record readRecord(JsonParser parser) throws IOException {
+		JsonToken token = parser.nextToken();
+		if(token == JsonToken.END_ARRAY) return null;
+		if(token != JsonToken.START_OBJECT) throw new JsonParseException(parser, "Record object expected.");
+
+		Record record = new Record();
+		while((token = parser.nextToken()) != JsonToken.END_OBJECT) {
+			String name = parser.getCurrentName();
+			token = parser.nextToken();
+			Object value;
+			switch(token) {
+			case VALUE_NULL: value = null; break;
+			case VALUE_TRUE: value = true; break;
+			case VALUE_FALSE: value = false; break;
+			case VALUE_STRING: value = parser.getText(); break;
+			case VALUE_NUMBER_INT: value = parser.getNumberValue(); break; // Integer, Long or BigInteger
+			case VALUE_NUMBER_FLOAT: value = parser.getDoubleValue(); break;
+			default: throw new JsonParseException(parser, "Value of column " + name + " must be a primitive value.");
+			}
+			record.set(name, value);
+		}
+		return record;
+	}
+
+	// Body of the log entry for the first appended records. It is built only if the log is enabled.
+	protected interface RecordsBody {
+		byte[] get(int count) throws IOException;
+	}
+
+	// Append records to the table and log them. The number of appended records is less than the number of records if the quota is reached.
+	protected long appendRecords(Account acc, UUID tableId, List<Record> records, MutationLog.Op op, RecordsBody body) throws Exception {
+		Lock lock = repository.writeLock(acc);
+		try {
+			Table table = repository.getTable(acc.getId(), tableId);
+			if(table == null) throw new IllegalStateException("Table not found.");
+
+			long allowed = repository.getQuotaRemaining(acc) / repository.getRecordSize(table);
+			int count = records.size();
+			if(count > allowed) {
+				if(!repository.isQuotaTruncate()) return 0; // Batch is rejected as a whole
+				count = (int) allowed;
+			}
+			if(count == 0) return 0;
+			List<Record> append = count < records.size() ? records.subList(0, count) : records;
+
+			long size = repository.getTableSize(table);
+			table.append(append, null);
+			acc.addDataSize(repository.getTableSize(table) - size);
+			if(repository.isLogEnabled()) repository.logMutation(acc, op, table.getId(), body.get(count));
+			return count;
+		}
+		finally {
+			lock.unlock();
 		}
-		return ResponseEntity.ok( "" + header +  data + "" );
 	}
-	@RequestMapping(value = "/tables/{id}/data/json", method = RequestMethod.POST, produces = "application/json") // Create records in a table with a given id
-	public ResponseEntity<String> /* of List<Records> */ writeRecordsJson(HttpSession session, @PathVariable String id, @RequestBody String body) {
+
+	@RequestMapping(value = "/tables/{id}/data/binary", method = RequestMethod.POST, produces = "application/json") // Create records in a table from columnar binary data (see ColumnarFormat)
+	public ResponseEntity<String> /* of List<Records> */ writeRecordsBinary(HttpSession session, @PathVariable String id, HttpServletRequest request) {
 		Account acc = repository.getAccountForSession(session);
 		if(acc == null) {
 			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session));
 		}
-		LOG.debug("Method: {}, Account: {}", "POST/tables/id/data/json", acc.getId());
+		LOG.debug("Method: {}, Account: {}", "POST/tables/id/data/binary", acc.getId());
 
-		Table table = repository.getTable(acc.getId(), UUID.fromString(id));
-		if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
+		UUID tableId = UUID.fromString(id);
+		List<String> names;
+		Lock lock = repository.readLock(acc);
+		try {
+			Table table = repository.getTable(acc.getId(), tableId);
+			if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
+			names = getColumnNames(table);
+		}
+		finally {
+			lock.unlock();
+		}
 
+		// Each chunk of the stream is decoded column by column and appended as one batch. Chunks are not larger than the ingest batch size because their records are allocated before their values are read.
+		// The bytes of the chunk are logged as they were received (the number of appended records is prepended because the quota can truncate the chunk).
+		long start = System.nanoTime();
+		long offset = 0; // Index of the first record of the next chunk
+		long appended = 0;
+		long truncated = 0;
 		try {
-			List<Record> records = Record.fromJsonList(body);
-			table.append(records, null);
-			acc.tableUploadCount++;
+			ColumnarFormat.Reader reader = new ColumnarFormat.Reader(request.getInputStream());
+			reader.setMaxRows(repository.getIngestBatchSize());
+			reader.setRecording(repository.isLogEnabled());
+			reader.readHeader();
+			for(String name : reader.getNames()) {
+				if(!names.contains(name)) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error appending data.", "Offset: 0, Appended: 0, Error: Column not found: " + name));
+			}
+
+			List<Record> chunk;
+			while((chunk = reader.readChunk()) != null) {
+				if(truncated == 0) {
+					long count = appendRecords(acc, tableId, chunk, MutationLog.Op.RECORDS_BINARY, n -> {
+						ByteArrayOutputStream body = new ByteArrayOutputStream();
+						DataOutputStream out = new DataOutputStream(body);
+						out.writeInt(n);
+						out.write(reader.getRecorded());
+						return body.toByteArray();
+					});
+					appended += count;
+					if(count < chunk.size()) { // Quota has been reached
+						if(!repository.isQuotaTruncate()) {
+							return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Quota exceeded.", "Offset: " + offset + ", Appended: " + appended + ", Quota: " + repository.getQuotaRemaining(acc) + " bytes remaining."));
+						}
+						truncated += chunk.size() - count;
+					}
+				}
+				else {
+					truncated += chunk.size();
+				}
+				offset += chunk.size();
+			}
+			acc.tableUploadCount.increment();
 		}
 		catch(Exception e) {
 			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error appending data.", e.getMessage()));
+			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error appending data.", "Offset: " + offset + ", Appended: " + appended + ", Error: " + e.getMessage()));
 		}
-		
-		return ResponseEntity.ok("{}");
+
+		return ResponseEntity.ok(ingestResult(start, appended, truncated));
 	}
 	@RequestMapping(value = "/tables/{id}/data/csv", method = RequestMethod.POST, produces = "application/json") // Create records in a table with a given id
-	public ResponseEntity<String> /* of List<Records> */ writeRecordsCsv(HttpSession session, @PathVariable String id, @RequestBody String body) {
+	public ResponseEntity<String> /* of List<Records> */ writeRecordsCsv(HttpSession session, @PathVariable String id, HttpServletRequest request) {
 		Account acc = repository.getAccountForSession(session);
 		if(acc == null) {
 			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(DcError.error(DcErrorCode.NOT_FOUND_IDENTITY, "Session: "+session));
 		}
 		LOG.debug("Method: {}, Account: {}", "POST/tables/id/data/csv", acc.getId());
 
-		Table table = repository.getTable(acc.getId(), UUID.fromString(id));
-		if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
-
+		UUID tableId = UUID.fromString(id);
+		Lock lock = repository.readLock(acc);
 		try {
-			// Split parameters in the first line and data in the rest of the file
+			Table table = repository.getTable(acc.getId(), tableId);
+			if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
+		}
+		finally {
+			lock.unlock();
+		}
+
+		// The body is read line by line and appended in batches so that the whole upload is never in memory.
+		// Batches are read without a lock and only appending a batch is exclusive.
+		long start = System.nanoTime();
+		long appended = 0;
+		long truncated = 0;
+		String charset = request.getCharacterEncoding() != null ? request.getCharacterEncoding() : "UTF-8";
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(request.getInputStream(), charset), 1 << 16)) {
 			// First line of the body is json object with parameters
 			// Parameters are followed by one optional header line which is followed by many value lines
-			int paramsEnd = body.indexOf("\n");
-			String params = body.substring(0, paramsEnd).trim();
-			String lines = body.substring(paramsEnd+1, body.length());
-
-			table.getSchema().createFromCsvLines(table.getName(), lines, params);
-			acc.tableUploadCount++;
+			String params = reader.readLine();
+			if(params == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error appending data.", "No parameters."));
+			params = params.trim();
+			String header = hasHeaderRecord(params) ? reader.readLine() : null; // Prepended to each batch
+
+			int batchSize = repository.getIngestBatchSize();
+			List<String> batch = new ArrayList<String>(Math.min(batchSize, 1024));
+			long batchChars = 0;
+			for(String line = reader.readLine(); ; line = reader.readLine()) {
+				if(line != null) {
+					if(truncated > 0) { // Quota has been reached
+						truncated++;
+						continue;
+					}
+					batch.add(line);
+					batchChars += line.length();
+					if(batch.size() < batchSize && batchChars < MAX_BATCH_CHARS) continue;
+				}
+
+				if(!batch.isEmpty()) {
+					long count = appendCsvLines(acc, tableId, params, header, batch);
+					appended += count;
+					if(count < batch.size()) { // Quota has been reached
+						if(!repository.isQuotaTruncate()) {
+							return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Quota exceeded.", "Records appended before the quota was reached: " + appended + ", Quota: " + repository.getQuotaRemaining(acc) + " bytes remaining."));
+						}
+						truncated += batch.size() - count;
+					}
+					batch.clear();
+					batchChars = 0;
+				}
+				if(line == null) break;
+			}
+			acc.tableUploadCount.increment();
 		}
 		catch(Exception e) {
 			LOG.error("Exception",  e);
 			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error appending data.", e.getMessage()));
 		}
-		
-		return ResponseEntity.ok("{}");
+
+		return ResponseEntity.ok(ingestResult(start, appended, truncated));
+	}
+
+	// Maximum number of characters in one batch of uploaded lines
+	protected static final long MAX_BATCH_CHARS = 1 << 24;
+
+	// Append CSV lines to the table and log them. The number of appended lines is less than the number of lines if the quota is reached.
+	protected long appendCsvLines(Account acc, UUID tableId, String params, String header, List<String> lines) throws Exception {
+		Lock lock = repository.writeLock(acc);
+		try {
+			Table table = repository.getTable(acc.getId(), tableId);
+			if(table == null) throw new IllegalStateException("Table not found.");
+
+			long allowed = repository.getQuotaRemaining(acc) / repository.getRecordSize(table);
+			int count = lines.size();
+			if(count > allowed) {
+				if(!repository.isQuotaTruncate()) return 0; // Batch is rejected as a whole
+				count = (int) allowed;
+			}
+			if(count == 0) return 0;
+
+			StringBuilder csv = new StringBuilder();
+			if(header != null) csv.append(header).append('\n');
+			for(int i = 0; i < count; i++) {
+				csv.append(lines.get(i)).append('\n');
+			}
+			String data = csv.toString();
+
+			long size = repository.getTableSize(table);
+			table.getSchema().createFromCsvLines(table.getName(), data, params);
+			repository.addElements(acc, table.getSchema()); // Columns created by the upload
+			acc.addDataSize(repository.getTableSize(table) - size);
+			if(repository.isLogEnabled()) repository.logMutation(acc, MutationLog.Op.RECORDS_CSV, table.getId(), params + "\n" + data);
+			return count;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Whether the upload parameters say that the first line after the parameters is a header
+	protected static boolean hasHeaderRecord(String params) {
+		try {
+			JSONObject json = new JSONObject(params);
+			return json.optBoolean("hasHeaderRecord", false);
+		}
+		catch(Exception e) { // Parameters are validated by the schema
+			return false;
+		}
 	}
 
 
@@ -548,19 +1272,28 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}, Account: {}", "DELETE/tables/id/data", acc.getId());
 
-		Table table = repository.getTable(acc.getId(), UUID.fromString(id));
-		if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
-
+		Lock lock = repository.writeLock(acc);
 		try {
-			table.remove(); // Main operation
-			acc.tableEmptyCount++;
+			Table table = repository.getTable(acc.getId(), UUID.fromString(id));
+			if(table == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Table not found.", ""));
+
+			try {
+				long size = repository.getTableSize(table);
+				table.remove(); // Main operation
+				acc.addDataSize(repository.getTableSize(table) - size);
+				repository.logMutation(acc, MutationLog.Op.RECORDS_DELETE, table.getId(), "");
+				acc.tableEmptyCount.increment();
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error deleting data.", e.getMessage()));
+			}
+
+			return ResponseEntity.ok(null);
+		}
+		finally {
+			lock.unlock();
 		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error deleting data.", e.getMessage()));
-		}
-
-		return ResponseEntity.ok(null);
 	}
 
 	//
@@ -575,10 +1308,16 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}/{}, Account: {}", "GET/columns", id, acc.getId());
 
-		Column column = repository.getColumn(acc.getId(), UUID.fromString(id));
-		if(column == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Column not found.", ""));
+		Lock lock = repository.readLock(acc);
+		try {
+			Column column = repository.getColumn(acc.getId(), UUID.fromString(id));
+			if(column == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Column not found.", ""));
 
-		return ResponseEntity.ok( column.toJson() );
+			return ResponseEntity.ok( column.toJson() );
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 	@RequestMapping(value = "/columns/{id}", method = RequestMethod.PUT, produces = "application/json") // Update an existing column
 	public ResponseEntity<String> /* of Column */ updateColumn(HttpSession session, @PathVariable String id, @RequestBody String body) { 
@@ -588,26 +1327,33 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}/{}, Account: {}", "PUT/columns", id, acc.getId());
 
-		Column column = repository.getColumn(acc.getId(), UUID.fromString(id));
-		if(column == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Column not found.", ""));
-
-		Schema schema = column.getSchema();
-
+		Lock lock = repository.writeLock(acc);
 		try {
-			schema.updateColumnFromJson(body); // Main operation
-			schema.translate();
-			acc.columnUpdateCount++;
-		}
-		catch(DcError e) {
-			LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
-			return ResponseEntity.ok(e.toJson());
-		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error updating column.", e.getMessage()));
+			Column column = repository.getColumn(acc.getId(), UUID.fromString(id));
+			if(column == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Column not found.", ""));
+
+			Schema schema = column.getSchema();
+
+			try {
+				schema.updateColumnFromJson(body); // Main operation
+				schema.translate();
+				repository.logMutation(acc, MutationLog.Op.COLUMN_UPDATE, column.getId(), body);
+				acc.columnUpdateCount.increment();
+			}
+			catch(DcError e) {
+				LOG.error("Error code: {}. Message: {}. Description: {}.", e.code,  e.message, e.description);
+				return ResponseEntity.ok(e.toJson());
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error updating column.", e.getMessage()));
+			}
+
+			return ResponseEntity.ok( column.toJson() );
+		}
+		finally {
+			lock.unlock();
 		}
-
-		return ResponseEntity.ok( column.toJson() );
 	}
 	@RequestMapping(value = "/columns/{id}", method = RequestMethod.DELETE, produces = "application/json") // Delete the specified table (and its columns)
 	public ResponseEntity<String> deleteColumn(HttpSession session, @PathVariable String id) { 
@@ -617,22 +1363,30 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}/{}, Account: {}", "DELETE/columns", id, acc.getId());
 
-		Column column = repository.getColumn(acc.getId(), UUID.fromString(id));
-		if(column == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Column not found.", ""));
+		Lock lock = repository.writeLock(acc);
+		try {
+			Column column = repository.getColumn(acc.getId(), UUID.fromString(id));
+			if(column == null) return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Column not found.", ""));
 
-		Schema schema = column.getSchema();
+			Schema schema = column.getSchema();
 
-		try {
-			schema.deleteColumn(id); // Main operation
-			schema.translate();
-			acc.columnDeleteCount++;
+			try {
+				repository.deleteColumn(column);
+				schema.deleteColumn(id); // Main operation
+				schema.translate();
+				repository.logMutation(acc, MutationLog.Op.COLUMN_DELETE, column.getId(), "");
+				acc.columnDeleteCount.increment();
+			}
+			catch(Exception e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error deleting column.", e.getMessage()));
+			}
+
+			return ResponseEntity.ok(null);
 		}
-		catch(Exception e) {
-			LOG.error("Exception",  e);
-			return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error deleting column.", e.getMessage()));
+		finally {
+			lock.unlock();
 		}
-
-		return ResponseEntity.ok(null);
 	}
 
 	//
@@ -649,16 +1403,22 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}, Account: {}", "GET/assets", acc.getId());
 
-		List<Asset> assets = repository.getAssetsForAccount(acc.getId());
-		String jelems = "";
-		for(Asset elem : assets) {
-			String jelem = "{}"; // elem.toJson();
-			jelems += jelem + ", ";
-		}
-		if(jelems.length() > 2) {
-			jelems = jelems.substring(0, jelems.length()-2);
+		Lock lock = repository.readLock(acc);
+		try {
+			List<Asset> assets = repository.getAssetsForAccount(acc.getId());
+			String jelems = "";
+			for(Asset elem : assets) {
+				String jelem = "{}"; // elem.toJson();
+				jelems += jelem + ", ";
+			}
+			if(jelems.length() > 2) {
+				jelems = jelems.substring(0, jelems.length()-2);
+			}
+			return ResponseEntity.ok( "{\"data\": [" + jelems + "]}" );
+		}
+		finally {
+			lock.unlock();
 		}
-		return ResponseEntity.ok( "{\"data\": [" + jelems + "]}" );
 	}
 	@RequestMapping(value = "/assets", method = RequestMethod.POST, produces = "application/json") // Create one (or several) assets
 	public ResponseEntity<String> /* of List<Asset> */ createAssets(HttpSession session, @RequestParam("file") MultipartFile file) { 
@@ -668,34 +1428,47 @@ public class ScRestService {
 		}
 		LOG.debug("Method: {}, Account: {}", "POST/assets", acc.getId());
 
-		List<Asset> assets = repository.getAssetsForAccount(acc.getId());
-		if(file.isEmpty()) {
-			return ResponseEntity.ok("{}"); // Error file is empty file.getOriginalFilename()
-		}
-
-		byte[] data = new byte[(int)file.getSize()];
+		Lock lock = repository.writeLock(acc);
 		try {
-			file.getInputStream().read(data);
-			return ResponseEntity.ok("{}");
-		} 
-		catch (IOException e) {
-			LOG.error("Exception",  e);
-		}
+			List<Asset> assets = repository.getAssetsForAccount(acc.getId());
+			if(file.isEmpty()) {
+				return ResponseEntity.ok("{}"); // Error file is empty file.getOriginalFilename()
+			}
+
+			// Check quota before the file is stored. An existing asset will be replaced.
+			long replaced = assets.size() == 0 ? 0 : assets.get(0).getSize();
+			if(file.getSize() - replaced > repository.getQuotaRemaining(acc)) {
+				return ResponseEntity.ok(repository.getQuotaError(acc, file.getSize()));
+			}
+
+			// Content is streamed into the asset store and shared if the same file has been already uploaded
+			AssetStore.Blob blob = null;
+			try (InputStream in = file.getInputStream()) {
+				blob = repository.getAssetStore().put(in);
+			} 
+			catch (IOException e) {
+				LOG.error("Exception",  e);
+				return ResponseEntity.ok(DcError.error(DcErrorCode.GENERAL, "Error uploading asset.", e.getMessage()));
+			}
 		
-		// We actually update or create only one asset per account
-		Asset asset = null;
-		if(assets.size() == 0) {
-			asset = new Asset();
-			repository.addAsset(acc, asset);
+			// We actually update or create only one asset per account
+			Asset asset = null;
+			if(assets.size() == 0) {
+				asset = new Asset();
+				repository.addAsset(acc, asset);
+			}
+			else {
+				asset = assets.get(0);
+			}
+
+			asset.setName(file.getName()); // or getFileName()
+			repository.setAssetData(acc, asset, blob);
+
+			return ResponseEntity.ok("{}");
 		}
-		else {
-			asset = assets.get(0);
+		finally {
+			lock.unlock();
 		}
-
-		asset.setName(file.getName()); // or getFileName()
-		asset.setData(data);
-
-		return ResponseEntity.ok("{}");
 	}
 	
 	// One asset
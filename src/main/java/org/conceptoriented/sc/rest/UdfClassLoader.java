@@ -8,6 +8,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -109,6 +110,7 @@ public class UdfClassLoader extends ClassLoader {
 
             // Use bytes to create a class
             clazz = defineClass(className, classData, 0, classData.length);
+            account.addClassSize(classData.length); // Approximation of the used metaspace
             if (resolve) {
                 resolveClass(clazz);
             }
@@ -153,7 +155,7 @@ public class UdfClassLoader extends ClassLoader {
 		List<Asset> assets = account.getAssets(".jar");
 		
 		for(Asset asset : assets) {
-			byte[] jarBytes = asset.getData();
+			ByteBuffer jarBytes = asset.getData(); // Mapped content is read without copying it into heap
 			byte[] classBytes = getClassBytesFromJarBytes(jarBytes, name);
 			if(classBytes != null && classBytes.length > 0) return classBytes;
 		}
@@ -162,10 +164,10 @@ public class UdfClassLoader extends ClassLoader {
 	}
 
 	// Loop through all entries in the jar bytes and find the specified class
-	protected byte[] getClassBytesFromJarBytes(byte[] jarBytes, String name) {
-		if(jarBytes == null || jarBytes.length == 0 || name == null) return null;
+	protected byte[] getClassBytesFromJarBytes(ByteBuffer jarBytes, String name) {
+		if(jarBytes == null || !jarBytes.hasRemaining() || name == null) return null;
 
-		try (JarInputStream jis = new JarInputStream(new ByteArrayInputStream(jarBytes))) {
+		try (JarInputStream jis = new JarInputStream(AssetStore.newInputStream(jarBytes))) {
 	        JarEntry entry;
 	        while ((entry = jis.getNextJarEntry()) != null) {
 	
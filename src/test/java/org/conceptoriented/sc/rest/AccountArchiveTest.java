@@ -0,0 +1,76 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AccountArchiveTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWriteRollRead() throws Exception {
+		File dir = folder.newFolder();
+
+		AccountArchive archive = new AccountArchive();
+		archive.setDir(dir);
+		archive.setMaxFileSize(100); // Roll over after a few lines
+		archive.start();
+
+		for(int i = 0; i < 50; i++) {
+			archive.append("{\"id\": " + i + ", \"name\": " + JSONObject.quote("user \"" + i + "\"") + "}");
+		}
+		archive.stop();
+
+		List<File> files = archive.getFiles();
+		assertTrue(files.size() > 1);
+		assertTrue(files.get(0).getName().endsWith(".log.gz"));
+
+		// All lines are read back in the order they were written and each line is a valid json object
+		List<String> lines;
+		try(Stream<String> stream = archive.read()) {
+			lines = stream.collect(Collectors.toList());
+		}
+		assertEquals(50, lines.size());
+		for(int i = 0; i < 50; i++) {
+			JSONObject json = new JSONObject(lines.get(i));
+			assertEquals(i, json.getInt("id"));
+			assertEquals("user \"" + i + "\"", json.getString("name"));
+		}
+	}
+
+	@Test
+	public void testFileSizeInBytes() throws Exception {
+		File dir = folder.newFolder();
+
+		AccountArchive archive = new AccountArchive();
+		archive.setDir(dir);
+		archive.setMaxFileSize(100);
+		archive.setCompress(false);
+		archive.start();
+
+		String line = "{\"name\": \"" + new String(new char[30]).replace('\0', '\u00fc') + "\"}"; // Two bytes per character
+		int lineBytes = line.getBytes(StandardCharsets.UTF_8).length + 1;
+		for(int i = 0; i < 10; i++) {
+			archive.append(line);
+		}
+		archive.stop();
+
+		// A file is rolled over as soon as its size in bytes reaches the maximum
+		for(File file : archive.getFiles()) {
+			assertTrue(file.length() < 100 + lineBytes);
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.UUID;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.conceptoriented.sc.core.*;
+
+public class AccountHibernationTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testHibernateRehydrate() throws Exception {
+		Repository repo = new Repository();
+		repo.setHibernationDir(folder.getRoot().getPath());
+
+		Account acc = new Account(repo, "test@host.com");
+		repo.addAccount(acc);
+		Schema schema = Repository.buildSampleSchema1("My Schema");
+		schema.translate();
+		repo.addSchema(acc, schema);
+		Table table = schema.getTable("My Table");
+
+		assertTrue(repo.hibernation.hibernate(acc));
+		assertTrue(acc.isHibernated());
+		assertTrue(repo.hibernation.getFile(acc).exists());
+		assertEquals(0, repo.getSchemasForAccount(acc.getId()).size());
+		assertEquals(0, repo.getFootprint(acc));
+
+		// Access loads the account back
+		assertEquals(acc, repo.getAccount(acc.getId()));
+		assertFalse(acc.isHibernated());
+		assertFalse(repo.hibernation.getFile(acc).exists());
+		Schema schema2 = repo.getSchemasForAccount(acc.getId()).get(0);
+		assertEquals("My Schema", schema2.getName());
+		assertEquals(3, schema2.getTable("My Table").read(null).size());
+		assertTrue(repo.getTable(acc.getId(), table.getId()) != null); // Element ids are preserved
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		Repository repo = new Repository();
+		repo.setHibernationDir(folder.getRoot().getPath());
+
+		Account acc1 = new Account(repo, "test1@host.com");
+		repo.addAccount(acc1);
+		assertTrue(repo.hibernation.hibernate(acc1));
+		Account acc2 = new Account(repo, "test2@host.com");
+		repo.addAccount(acc2);
+
+		// Files of resident or unknown accounts are stale
+		File stale = repo.hibernation.getFile(acc2);
+		assertTrue(stale.createNewFile());
+		File unknown = new File(folder.getRoot(), UUID.randomUUID() + ".bin");
+		assertTrue(unknown.createNewFile());
+
+		repo.hibernation.clear();
+		assertTrue(repo.hibernation.getFile(acc1).exists());
+		assertFalse(stale.exists());
+		assertFalse(unknown.exists());
+	}
+
+	@Test
+	public void testHeapBudget() throws Exception {
+		Repository repo = new Repository();
+		repo.setHibernationDir(folder.getRoot().getPath());
+
+		Account acc1 = new Account(repo, "test1@host.com");
+		repo.addAccount(acc1);
+		repo.addSchema(acc1, Repository.buildSampleSchema1("My Schema"));
+		Thread.sleep(10);
+		Account acc2 = new Account(repo, "test2@host.com");
+		repo.addAccount(acc2);
+		repo.addSchema(acc2, Repository.buildSampleSchema1("My Schema"));
+
+		// Least recently used account is hibernated first
+		repo.setHibernationHeapBudget(repo.getFootprint(acc2));
+		assertEquals(1, repo.hibernation.evict());
+		assertTrue(acc1.isHibernated());
+		assertFalse(acc2.isHibernated());
+	}
+
+}
@@ -0,0 +1,61 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Test;
+
+public class AccountLocksTest {
+
+	@Test
+	public void testReadWrite() throws Exception {
+		Repository repo = new Repository();
+		AccountLocks locks = repo.getLocks();
+		Account acc = new Account(repo, "test@host.com");
+		repo.addAccount(acc);
+
+		// Readers do not block each other
+		Lock read1 = repo.readLock(acc);
+		CountDownLatch read = new CountDownLatch(1);
+		new Thread(() -> { Lock l = repo.readLock(acc); read.countDown(); l.unlock(); }).start();
+		assertTrue(read.await(5, TimeUnit.SECONDS));
+
+		// Writer waits for the reader
+		CountDownLatch written = new CountDownLatch(1);
+		new Thread(() -> { Lock l = repo.writeLock(acc); written.countDown(); l.unlock(); }).start();
+		assertFalse(written.await(200, TimeUnit.MILLISECONDS));
+		read1.unlock();
+		assertTrue(written.await(5, TimeUnit.SECONDS));
+
+		assertEquals(2, locks.getReadCount());
+		assertEquals(1, locks.getWriteCount());
+		assertTrue(locks.getWriteWait() >= TimeUnit.MILLISECONDS.toNanos(200));
+		assertTrue(locks.getMaxWait() >= locks.getWriteWait());
+	}
+
+	@Test
+	public void testAccounts() throws Exception {
+		AccountLocks locks = new AccountLocks();
+		Repository repo = new Repository();
+		Account acc1 = new Account(repo, "test1@host.com");
+		Account acc2 = new Account(repo, "test2@host.com");
+
+		// Write lock is reentrant and allows reading by the same thread
+		Lock write = locks.write(acc1);
+		Lock read = locks.read(acc1);
+		read.unlock();
+
+		// Other accounts are not blocked by a writer
+		CountDownLatch other = new CountDownLatch(1);
+		new Thread(() -> { Lock l = locks.read(acc2); other.countDown(); l.unlock(); }).start();
+		assertTrue(other.await(5, TimeUnit.SECONDS));
+		write.unlock();
+		assertEquals(0, locks.getMaxWait());
+	}
+
+}
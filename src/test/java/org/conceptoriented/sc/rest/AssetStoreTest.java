@@ -0,0 +1,81 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AssetStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testDeduplication() throws Exception {
+		Repository repo = new Repository();
+		repo.setAssetDir(folder.getRoot().getPath());
+		AssetStore store = repo.getAssetStore();
+		byte[] content = "same jar content".getBytes(StandardCharsets.UTF_8);
+
+		// Two accounts upload the same content
+		Account acc1 = new Account(repo, "test1@host.com");
+		repo.addAccount(acc1);
+		Asset asset1 = repo.addAsset(acc1, new Asset());
+		repo.setAssetData(acc1, asset1, store.put(new ByteArrayInputStream(content)));
+
+		Account acc2 = new Account(repo, "test2@host.com");
+		repo.addAccount(acc2);
+		Asset asset2 = repo.addAsset(acc2, new Asset());
+		repo.setAssetData(acc2, asset2, store.put(new ByteArrayInputStream(content)));
+
+		assertEquals(1, store.getBlobCount());
+		assertTrue(asset1.getBlob() == asset2.getBlob());
+		assertEquals(content.length, acc1.getAssetSize());
+		assertEquals(content.length, acc2.getAssetSize());
+
+		// Content is memory-mapped from the store file
+		AssetStore.Blob blob = asset1.getBlob();
+		assertTrue(store.getFile(blob.getHash()).exists());
+		assertTrue(asset1.getData().isReadOnly());
+		ByteBuffer data = asset2.getData();
+		byte[] read = new byte[data.remaining()];
+		data.get(read);
+		assertEquals("same jar content", new String(read, StandardCharsets.UTF_8));
+
+		// File is deleted when the last reference is released
+		repo.deleteAccount(acc1);
+		assertEquals(1, store.getBlobCount());
+		repo.deleteAccount(acc2);
+		assertEquals(0, store.getBlobCount());
+		assertFalse(store.getFile(blob.getHash()).exists());
+		assertEquals(0, acc2.getAssetSize());
+	}
+
+	@Test
+	public void testHeap() throws Exception {
+		AssetStore store = new AssetStore(); // No directory
+		AssetStore.Blob blob1 = store.put("abc".getBytes(StandardCharsets.UTF_8));
+		AssetStore.Blob blob2 = store.put("abc".getBytes(StandardCharsets.UTF_8));
+		AssetStore.Blob blob3 = store.put("abcd".getBytes(StandardCharsets.UTF_8));
+
+		assertTrue(blob1 == blob2);
+		assertEquals(2, store.getBlobCount());
+		assertFalse(blob1.getData() instanceof MappedByteBuffer);
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", blob1.getHash());
+
+		store.release(blob1);
+		assertEquals(2, store.getBlobCount());
+		store.release(blob2);
+		store.release(blob3);
+		assertEquals(0, store.getBlobCount());
+	}
+
+}
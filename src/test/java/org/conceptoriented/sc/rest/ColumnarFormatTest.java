@@ -0,0 +1,156 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.conceptoriented.sc.core.*;
+
+public class ColumnarFormatTest {
+
+	// Stream with columns A (DOUBLE), N (INTEGER) and S (STRING) and one chunk of 3 rows where the second row has nulls
+	byte[] sample() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(ColumnarFormat.MAGIC);
+		out.writeInt(3);
+		AccountSerializer.writeString(out, "A");
+		out.writeByte(AccountSerializer.DOUBLE);
+		AccountSerializer.writeString(out, "N");
+		out.writeByte(AccountSerializer.INTEGER);
+		AccountSerializer.writeString(out, "S");
+		out.writeByte(AccountSerializer.STRING);
+
+		out.writeInt(3);
+		out.writeByte(0b101);
+		out.writeDouble(1.5);
+		out.writeDouble(0);
+		out.writeDouble(-2.0);
+		out.writeByte(0b101);
+		out.writeInt(10);
+		out.writeInt(0);
+		out.writeInt(30);
+		out.writeByte(0b101);
+		AccountSerializer.writeString(out, "x");
+		AccountSerializer.writeString(out, "z");
+
+		out.writeInt(0);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testRead() throws Exception {
+		ColumnarFormat.Reader reader = new ColumnarFormat.Reader(new ByteArrayInputStream(sample()));
+		reader.readHeader();
+		assertArrayEquals(new String[] { "A", "N", "S" }, reader.getNames());
+
+		List<Record> records = reader.readChunk();
+		assertEquals(3, records.size());
+		assertEquals(1.5, records.get(0).get("A"));
+		assertEquals(10, records.get(0).get("N"));
+		assertEquals("x", records.get(0).get("S"));
+		assertNull(records.get(1).get("A"));
+		assertNull(records.get(1).get("N"));
+		assertNull(records.get(1).get("S"));
+		assertEquals(-2.0, records.get(2).get("A"));
+		assertEquals("z", records.get(2).get("S"));
+
+		assertNull(reader.readChunk());
+	}
+
+	@Test
+	public void testWrite() throws Exception {
+		List<Record> records = new ArrayList<Record>();
+		for(int i = 0; i < 10; i++) {
+			Record record = new Record();
+			record.set("A", i % 3 == 0 ? null : i * 1.5);
+			record.set("L", (long) i);
+			record.set("B", i % 2 == 0);
+			record.set("S", "s" + i);
+			records.add(record);
+		}
+
+		// Written stream is read back with the same values
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ColumnarFormat.Writer writer = new ColumnarFormat.Writer(bytes);
+		writer.writeHeader(new String[] { "A", "L", "B", "S" }, new byte[] { AccountSerializer.DOUBLE, AccountSerializer.LONG, AccountSerializer.BOOLEAN, AccountSerializer.STRING });
+		writer.writeChunk(records.subList(0, 4));
+		writer.writeChunk(new ArrayList<Record>());
+		writer.writeChunk(records.subList(4, 10));
+		writer.writeEnd();
+
+		ColumnarFormat.Reader reader = new ColumnarFormat.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+		reader.readHeader();
+		List<Record> result = new ArrayList<Record>();
+		List<Record> chunk;
+		while((chunk = reader.readChunk()) != null) {
+			result.addAll(chunk);
+		}
+		assertEquals(10, result.size());
+		for(int i = 0; i < 10; i++) {
+			for(String name : new String[] { "A", "L", "B", "S" }) {
+				assertEquals(records.get(i).get(name), result.get(i).get(name));
+			}
+		}
+	}
+
+	@Test
+	public void testRecording() throws Exception {
+		byte[] bytes = sample();
+
+		// Header and the last chunk are the same stream as the one which was read
+		ColumnarFormat.Reader reader = new ColumnarFormat.Reader(new ByteArrayInputStream(bytes));
+		reader.setRecording(true);
+		reader.readHeader();
+		reader.readChunk();
+		assertArrayEquals(bytes, reader.getRecorded());
+
+		reader = new ColumnarFormat.Reader(new ByteArrayInputStream(reader.getRecorded()));
+		reader.readHeader();
+		assertEquals(3, reader.readChunk().size());
+		assertNull(reader.readChunk());
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		byte[] bytes = sample();
+
+		// Truncated stream
+		ColumnarFormat.Reader reader = new ColumnarFormat.Reader(new ByteArrayInputStream(bytes, 0, bytes.length - 6));
+		reader.readHeader();
+		try {
+			reader.readChunk();
+			fail();
+		}
+		catch(IOException e) {}
+
+		// Chunk larger than the limit of the reader is rejected before its records are allocated
+		reader = new ColumnarFormat.Reader(new ByteArrayInputStream(bytes));
+		reader.setMaxRows(2);
+		reader.readHeader();
+		try {
+			reader.readChunk();
+			fail();
+		}
+		catch(IOException e) {}
+
+		// Wrong magic
+		bytes[0] = 'X';
+		try {
+			new ColumnarFormat.Reader(new ByteArrayInputStream(bytes)).readHeader();
+			fail();
+		}
+		catch(IOException e) {}
+	}
+
+}
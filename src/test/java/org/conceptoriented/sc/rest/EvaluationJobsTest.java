@@ -0,0 +1,69 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Test;
+
+public class EvaluationJobsTest {
+
+	void await(EvaluationJobs.Job job) throws InterruptedException {
+		for(int i = 0; i < 500 && !job.isFinished(); i++) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testQueue() throws Exception {
+		Repository repo = new Repository();
+		Account acc = new Account(repo, "test@host.com");
+		repo.addAccount(acc);
+
+		EvaluationJobs jobs = new EvaluationJobs(repo);
+		jobs.setThreads(1);
+		jobs.setQueueSize(1);
+		jobs.start();
+		try {
+			// The only thread waits for the account lock so the next job is queued and the one after it is rejected
+			Lock lock = repo.getLocks().write(acc);
+			EvaluationJobs.Job job1 = jobs.submit(acc, UUID.randomUUID(), false, false);
+			while(job1.getStatus() == EvaluationJobs.Status.QUEUED) Thread.sleep(1);
+			EvaluationJobs.Job job2 = jobs.submit(acc, UUID.randomUUID(), false, false);
+			assertNotNull(job2);
+			assertNull(jobs.submit(acc, UUID.randomUUID(), false, false));
+			assertEquals(EvaluationJobs.Status.RUNNING, job1.getStatus());
+			assertEquals(EvaluationJobs.Status.QUEUED, job2.getStatus());
+			lock.unlock();
+
+			// Unknown schemas fail with an error as the result
+			await(job1);
+			await(job2);
+			assertEquals(EvaluationJobs.Status.FAILED, job2.getStatus());
+			assertTrue(job2.getResult().contains("Schema not found."));
+			assertTrue(job2.toJson().contains("\"status\": \"FAILED\""));
+
+			// Looking for jobs of deleted accounts does not mark accounts as accessed
+			Instant accessed = acc.getAccessTime();
+			Thread.sleep(10);
+			assertEquals(0, jobs.purge());
+			assertEquals(accessed, acc.getAccessTime());
+
+			// Finished jobs are removed after the retention time
+			jobs.setRetention(Duration.ZERO);
+			Thread.sleep(10);
+			assertEquals(2, jobs.purge());
+			assertNull(jobs.getJob(job1.getId()));
+		}
+		finally {
+			jobs.stop();
+		}
+	}
+
+}
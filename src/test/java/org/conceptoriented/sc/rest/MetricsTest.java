@@ -0,0 +1,67 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void testHistogram() throws Exception {
+		Metrics metrics = new Metrics();
+
+		// Concurrent observations are not lost
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		for(int t = 0; t < 8; t++) {
+			pool.submit(() -> {
+				for(int i = 0; i < 10000; i++) {
+					metrics.observe("GET", "/api/schemas", TimeUnit.MILLISECONDS.toNanos(2), 0, 1000);
+				}
+			});
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+		Metrics.Family family = metrics.getFamily("GET", "/api/schemas");
+		assertEquals(80000, family.getDuration().getCount());
+		assertEquals(80000 * 1000.0, family.getResponseSize().getSum(), 0.0);
+
+		StringBuilder out = new StringBuilder();
+		Metrics.writeHistograms(out, "test_duration_seconds", "Test.", Collections.singletonMap("account=\"a\"", metrics), Metrics.Family::getDuration);
+		String text = out.toString();
+
+		// Buckets are cumulative
+		assertTrue(text.contains("# TYPE test_duration_seconds histogram\n"));
+		assertTrue(text.contains("test_duration_seconds_bucket{account=\"a\",method=\"GET\",path=\"/api/schemas\",le=\"0.001\"} 0\n"));
+		assertTrue(text.contains("test_duration_seconds_bucket{account=\"a\",method=\"GET\",path=\"/api/schemas\",le=\"0.005\"} 80000\n"));
+		assertTrue(text.contains("test_duration_seconds_bucket{account=\"a\",method=\"GET\",path=\"/api/schemas\",le=\"+Inf\"} 80000\n"));
+		assertTrue(text.contains("test_duration_seconds_count{account=\"a\",method=\"GET\",path=\"/api/schemas\"} 80000\n"));
+	}
+
+	@Test
+	public void testAccountStatistics() throws Exception {
+		Repository repo = new Repository();
+		Account acc = new Account(repo, "test@host.com");
+		repo.addAccount(acc);
+		acc.tableUploadCount.increment();
+
+		// Without the token, account ids are not exported
+		String text = repo.getMetricsText(repo.isMetricsToken(null));
+		assertFalse(text.contains(acc.getId().toString()));
+		assertTrue(text.contains("sc_operations_total{operation=\"table_upload\"} 1\n"));
+		assertTrue(text.contains("sc_accounts{state=\"resident\"} 1\n"));
+
+		repo.setMetricsToken("secret");
+		assertFalse(repo.isMetricsToken("other"));
+		text = repo.getMetricsText(repo.isMetricsToken("secret"));
+		assertTrue(text.contains("sc_account_operations_total{account=\"" + acc.getId() + "\",operation=\"table_upload\"} 1\n"));
+	}
+
+}
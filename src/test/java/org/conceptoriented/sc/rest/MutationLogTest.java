@@ -0,0 +1,208 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.conceptoriented.sc.core.*;
+
+public class MutationLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testGroupCommitReplay() throws Exception {
+		System.out.println(">>>>>>>>>>>>>>>>>>>>> testGroupCommitReplay");
+
+		File dir = folder.newFolder();
+		int threads = 16;
+		int count = 200;
+		byte[] body = "[{\"A\": 1.0, \"B\": 2.0}]".getBytes(StandardCharsets.UTF_8);
+
+		MutationLog log = new MutationLog();
+		log.setDir(dir);
+		log.start();
+
+		UUID account = UUID.randomUUID();
+		Instant start = Instant.now();
+		List<Thread> workers = new ArrayList<Thread>();
+		for(int t = 0; t < threads; t++) {
+			Thread worker = new Thread(() -> {
+				try {
+					for(int i = 0; i < count; i++) {
+						log.append(MutationLog.Op.RECORDS_JSON, account, UUID.randomUUID(), body);
+					}
+				}
+				catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		long millis = Math.max(1, Duration.between(start, Instant.now()).toMillis());
+		log.stop();
+
+		// Concurrent appends share syncs
+		assertEquals(threads * count, log.getAppendCount());
+		assertTrue(log.getSyncCount() < log.getAppendCount());
+		System.out.println("Appends: " + log.getAppendCount() + ", Syncs: " + log.getSyncCount() + ", Appends/s: " + (log.getAppendCount() * 1000 / millis));
+
+		// Torn entry at the end of the log is ignored
+		List<File> segments = log.getSegments();
+		try(FileOutputStream out = new FileOutputStream(segments.get(segments.size() - 1), true)) {
+			out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+		}
+
+		MutationLog log2 = new MutationLog();
+		log2.setDir(dir);
+		List<Long> sequences = new ArrayList<Long>();
+		log2.replay(x -> sequences.add(x.sequence));
+		assertEquals(threads * count, sequences.size());
+		for(int i = 0; i < sequences.size(); i++) {
+			assertEquals(i + 1, (long) sequences.get(i));
+		}
+		assertEquals(threads * count + 1, log2.getNextSequence());
+
+		// Segments with entries before the sequence are deleted
+		log2.start();
+		log2.append(MutationLog.Op.RECORDS_DELETE, account, UUID.randomUUID(), new byte[0]);
+		log2.stop();
+		log2.truncate(log2.getNextSequence());
+		assertEquals(1, log2.getSegments().size());
+	}
+
+	@Test
+	public void testCorruptEntries() throws Exception {
+		File dir = folder.newFolder();
+		UUID account = UUID.randomUUID();
+
+		// Batches are limited by bytes
+		MutationLog log = new MutationLog();
+		log.setDir(dir);
+		log.setSync(false);
+		log.setMaxBatchSize(1);
+		log.start();
+		for(int i = 0; i < 100; i++) {
+			log.append(MutationLog.Op.RECORDS_JSON, account, UUID.randomUUID(), "[]".getBytes(StandardCharsets.UTF_8));
+		}
+		log.stop();
+		assertEquals(100, log.getSyncCount());
+
+		// Entry with an unknown operation (and a valid checksum) stops replay
+		ByteBuffer payload = ByteBuffer.allocate(8 + 4 + 16 + 16);
+		payload.putLong(101).putInt(999).putLong(1).putLong(2).putLong(3).putLong(4);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, payload.capacity());
+		List<File> segments = log.getSegments();
+		try(DataOutputStream out = new DataOutputStream(new FileOutputStream(segments.get(segments.size() - 1), true))) {
+			out.writeInt(payload.capacity());
+			out.writeInt((int) crc.getValue());
+			out.write(payload.array());
+		}
+		MutationLog log2 = new MutationLog();
+		log2.setDir(dir);
+		assertEquals(100, log2.replay(x -> {}));
+
+		// Length exceeding the segment is a torn entry and nothing is allocated for it
+		File segment = new File(dir, "repo.wal." + String.format("%020d", 200));
+		try(DataOutputStream out = new DataOutputStream(new FileOutputStream(segment))) {
+			out.writeInt(Integer.MAX_VALUE);
+			out.writeInt(0);
+			out.write(new byte[100]);
+		}
+		assertEquals(100, log2.replay(x -> {}));
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		System.out.println(">>>>>>>>>>>>>>>>>>>>> testRecovery");
+
+		File dir = folder.newFolder();
+		File file = new File(folder.getRoot(), "repo.snapshot");
+
+		Repository repo = new Repository();
+		repo.setLogDir(dir.getPath());
+		repo.setSnapshotFile(file.getPath());
+		repo.log.start();
+
+		Account acc = new Account(repo, "test@host.com");
+		repo.addAccount(acc);
+		Schema schema1 = Repository.buildSampleSchema1("My Schema");
+		repo.addSchema(acc, schema1);
+		repo.logAccount(acc);
+		assertEquals(1, repo.snapshot.take());
+
+		// Mutations after the snapshot are only in the log
+		Table table1 = schema1.getTable("My Table");
+		String records = "[{\"A\": 77.7}, {\"A\": 88.8}]";
+		table1.append(Record.fromJsonList(records), null);
+		repo.logMutation(acc, MutationLog.Op.RECORDS_JSON, table1.getId(), records);
+
+		// Binary chunk of which only the first record was appended (quota)
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(chunk);
+		out.writeInt(1);
+		ColumnarFormat.Writer writer = new ColumnarFormat.Writer(out);
+		writer.writeHeader(new String[] { "A" }, new byte[] { AccountSerializer.DOUBLE });
+		writer.writeChunk(Record.fromJsonList("[{\"A\": 99.9}, {\"A\": 11.1}]"));
+		writer.writeEnd();
+		table1.append(Record.fromJsonList("[{\"A\": 99.9}]"), null);
+		repo.logMutation(acc, MutationLog.Op.RECORDS_BINARY, table1.getId(), chunk.toByteArray());
+
+		Table table2 = schema1.getTable("My Table 2");
+		table2.remove();
+		repo.logMutation(acc, MutationLog.Op.RECORDS_DELETE, table2.getId(), "");
+
+		Schema schema2 = Repository.buildSampleSchema1("My Schema 2");
+		repo.addSchema(acc, schema2);
+		repo.logSchema(acc, schema2);
+
+		repo.log.stop(); // Crash: no snapshot is written on stop
+
+		// A new repository restores the snapshot and replays the log
+		Repository repo2 = new Repository();
+		repo2.setLogDir(dir.getPath());
+		repo2.setSnapshotFile(file.getPath());
+		repo2.start();
+		try {
+			Account acc2 = repo2.getAccount(acc.getId());
+			assertNotNull(acc2);
+			assertEquals(2, repo2.getSchemasForAccount(acc2.getId()).size());
+			assertNotNull(repo2.getSchemaForName(acc2.getId(), "My Schema 2"));
+
+			List<Record> rows1 = repo2.getTable(acc2.getId(), table1.getId()).read(null);
+			assertEquals(6, rows1.size());
+			assertEquals(77.7, rows1.get(3).get("A"));
+			assertEquals(88.8, rows1.get(4).get("A"));
+			assertEquals(99.9, rows1.get(5).get("A"));
+			assertEquals(0, repo2.getTable(acc2.getId(), table2.getId()).read(null).size());
+			assertEquals(acc.getLogSequence(), acc2.getLogSequence());
+		}
+		finally {
+			repo2.stop();
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.conceptoriented.sc.core.*;
+
+public class RecordFilterTest {
+
+	List<String> columns = Arrays.asList("Product ID", "Total Amount", "Name");
+
+	Record record(Object id, Object amount, Object name) {
+		Record record = new Record();
+		record.set("Product ID", id);
+		record.set("Total Amount", amount);
+		record.set("Name", name);
+		return record;
+	}
+
+	@Test
+	public void testConditions() throws Exception {
+		RecordFilter filter = new RecordFilter("[Total Amount] > 1000", columns);
+		assertTrue(filter.test(record(1, 1500.0, "a")));
+		assertFalse(filter.test(record(2, 1000.0, "b")));
+		assertFalse(filter.test(record(3, null, "c"))); // Null is not comparable
+
+		// Arithmetic is computed before comparison, and comparison before logical operators
+		filter = new RecordFilter("[Total Amount] / 2 >= 500 && [Product ID] != 3 || [Product ID] == 7", columns);
+		assertTrue(filter.test(record(1, 1000.0, "a")));
+		assertFalse(filter.test(record(3, 1000.0, "a")));
+		assertFalse(filter.test(record(1, 999.0, "a")));
+		assertTrue(filter.test(record(7, 0.0, "a")));
+		assertEquals(Arrays.asList("Total Amount", "Product ID"), filter.getColumns());
+
+		// Numeric strings are converted
+		filter = new RecordFilter("[Name] < 10", columns);
+		assertTrue(filter.test(record(1, 1.0, " 5 ")));
+		assertFalse(filter.test(record(1, 1.0, "five")));
+
+		List<Record> records = Arrays.asList(record(1, 1.0, "1"), record(2, 2.0, "2"), record(3, 3.0, "3"));
+		assertEquals(2, new RecordFilter("[Product ID] <= 2", columns).filter(records).size());
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		for(String condition : new String[] { "[Price] > 1", "[Total Amount] >", "", "([Product ID] > 1" }) {
+			try {
+				new RecordFilter(condition, columns);
+				fail("Accepted: " + condition);
+			}
+			catch(IllegalArgumentException e) {}
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.conceptoriented.sc.core.*;
+
+public class RepositorySnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSnapshotRestore() throws Exception {
+		System.out.println(">>>>>>>>>>>>>>>>>>>>> testSnapshotRestore");
+
+		File file = new File(folder.getRoot(), "repo.snapshot");
+		int accountCount = 500;
+
+		Repository repo = new Repository();
+		repo.setSnapshotFile(file.getPath());
+		for(int i = 0; i < accountCount; i++) {
+			Account acc = new Account(repo, "test" + i + "@host.com");
+			acc.setSession("session-" + i);
+			acc.schemaEvaluateCount.add(i);
+			repo.addAccount(acc);
+
+			Schema schema = Repository.buildSampleSchema1("My Schema");
+			Table table = schema.getTable("My Table");
+			table.setMaxLength(1000);
+			for(int r = 0; r < 500; r++) {
+				Record record = new Record();
+				record.set("A", (double) r);
+				table.append(record);
+			}
+			schema.translate();
+			repo.addSchema(acc, schema);
+		}
+
+		Instant start = Instant.now();
+		assertEquals(accountCount, repo.snapshot.take());
+		System.out.println("Snapshot time: " + Duration.between(start, Instant.now()).toMillis() + " ms, File size: " + file.length());
+
+		Repository repo2 = new Repository();
+		repo2.setSnapshotFile(file.getPath());
+		start = Instant.now();
+		assertEquals(accountCount, repo2.snapshot.restore());
+		System.out.println("Restore time: " + Duration.between(start, Instant.now()).toMillis() + " ms");
+
+		for(Account acc : repo.getAccounts()) {
+			Account acc2 = repo2.getAccount(acc.getId());
+			assertEquals(acc.getName(), acc2.getName());
+			assertEquals(acc.getSession(), acc2.getSession());
+			assertEquals(acc.schemaEvaluateCount.sum(), acc2.schemaEvaluateCount.sum());
+
+			Schema schema2 = repo2.getSchemasForAccount(acc2.getId()).get(0);
+			assertEquals(repo.getSchemasForAccount(acc.getId()).get(0).getName(), schema2.getName());
+			assertEquals(503, schema2.getTable("My Table").read(null).size());
+		}
+	}
+
+}
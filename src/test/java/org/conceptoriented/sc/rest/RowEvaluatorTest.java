@@ -0,0 +1,212 @@
+package org.conceptoriented.sc.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import org.conceptoriented.sc.core.*;
+
+public class RowEvaluatorTest {
+
+	@Test
+	public void testPartitions() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			// Each row is in exactly one partition which is not larger than the partition size
+			List<long[]> partitions = Collections.synchronizedList(new ArrayList<long[]>());
+			long rows = RowEvaluator.partition(10, 1010, 64, (start, end) -> {
+				partitions.add(new long[] { start, end });
+				assertTrue(end - start <= 64);
+				return end - start;
+			}, Long::sum, pool);
+			assertEquals(1000, rows);
+
+			partitions.sort((a, b) -> Long.compare(a[0], b[0]));
+			assertEquals(10, partitions.get(0)[0]);
+			for(int i = 1; i < partitions.size(); i++) {
+				assertEquals(partitions.get(i - 1)[1], partitions.get(i)[0]);
+			}
+
+			// Without a pool partitions are computed by the current thread
+			assertEquals(1000, (long) RowEvaluator.partition(10, 1010, 64, (start, end) -> end - start, Long::sum, null));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcat() throws Exception {
+		RowEvaluator.Increments a = new RowEvaluator.Increments(1);
+		RowEvaluator.Increments b = new RowEvaluator.Increments(1);
+		RowEvaluator.Increments c = new RowEvaluator.Increments(1);
+
+		// Increments of partitions are in the order of facts
+		List<RowEvaluator.Increments> increments = RowEvaluator.concat(RowEvaluator.concat(Arrays.asList(a), Arrays.asList(b)), Arrays.asList(c));
+		assertEquals(Arrays.asList(a, b, c), increments);
+
+		// Increments of facts are in the order of partitions when they are computed in parallel
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			List<RowEvaluator.Increments> partitions = RowEvaluator.partition(0, 1000, 8, (start, end) -> {
+				RowEvaluator.Increments partial = new RowEvaluator.Increments((int) (end - start));
+				for(long row = start; row < end; row++) {
+					partial.groups[partial.size++] = row;
+				}
+				return Arrays.asList(partial);
+			}, RowEvaluator::concat, pool);
+			long row = 0;
+			for(RowEvaluator.Increments partial : partitions) {
+				for(int i = 0; i < partial.size; i++) {
+					assertEquals(row++, partial.groups[i]);
+				}
+			}
+			assertEquals(1000, row);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testFormula() throws Exception {
+		RowEvaluator.Formula formula = new RowEvaluator.Formula("[Quantity] * [Unit Price] + 1", Arrays.asList("Quantity", "Unit Price", "Name"));
+		Record record = new Record();
+		record.set("Quantity", 3);
+		record.set("Unit Price", 2.5);
+		assertEquals(8.5, formula.evaluate(formula.newExpression(), record), 0.0);
+
+		// Null and string values are evaluated by the column itself
+		record.set("Quantity", null);
+		try {
+			formula.evaluate(formula.newExpression(), record);
+			fail();
+		}
+		catch(RowEvaluator.Unsupported e) {}
+
+		record.set("Quantity", "3");
+		try {
+			formula.evaluate(formula.newExpression(), record);
+			fail();
+		}
+		catch(RowEvaluator.Unsupported e) {}
+
+		// Results which are not numbers
+		formula = new RowEvaluator.Formula("[Quantity] / [Unit Price]", Arrays.asList("Quantity", "Unit Price"));
+		record.set("Quantity", 3);
+		record.set("Unit Price", 0.0);
+		try {
+			formula.evaluate(formula.newExpression(), record);
+			fail();
+		}
+		catch(RowEvaluator.Unsupported e) {}
+
+		try {
+			new RowEvaluator.Formula("[Price] * 2", Arrays.asList("Quantity"));
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void testCreate() throws Exception {
+		Schema schema = Repository.buildSampleSchema1("My Schema");
+		assertNotNull(RowEvaluator.create(schema.getColumn("My Table", "AA")));
+
+		// Increments with additions are not added to the group value in the same order
+		Column column = schema.getColumn("My Table", "AA");
+		column.setDefinitionAccu(new ColumnDefinitionAccu("[A]", "[out] + [E] * 10.0 + 1.0", null, "My Table 2", "[GG]", ExpressionKind.EXP4J));
+		assertNull(RowEvaluator.create(column));
+		column.setDefinitionAccu(new ColumnDefinitionAccu("[A]", "[out] + ([E] * 10.0 + 1.0)", null, "My Table 2", "[GG]", ExpressionKind.EXP4J));
+		assertNotNull(RowEvaluator.create(column));
+	}
+
+	@Test
+	public void testEvaluate() throws Exception {
+		Schema schema1 = Repository.buildSampleSchema1("My Schema");
+		Schema schema2 = Repository.buildSampleSchema1("My Schema");
+		assertSameEvaluation(schema1, schema2);
+	}
+
+	@Test
+	public void testEvaluateNulls() throws Exception {
+		Schema schema1 = Repository.buildSampleSchema1("My Schema");
+		Schema schema2 = Repository.buildSampleSchema1("My Schema");
+
+		// Rows with null inputs of the formulas
+		for(Schema schema : new Schema[] { schema1, schema2 }) {
+			Record record = new Record();
+			record.set("A", null);
+			schema.getTable("My Table").append(record);
+			record = new Record();
+			record.set("D", null);
+			schema.getTable("My Table 2").append(record);
+		}
+		assertSameEvaluation(schema1, schema2);
+	}
+
+	@Test
+	public void testEvaluateStrings() throws Exception {
+		Schema schema1 = Repository.buildSampleSchema1("My Schema");
+		Schema schema2 = Repository.buildSampleSchema1("My Schema");
+
+		// Formula on a string column with numbers, other strings and nulls
+		for(Schema schema : new Schema[] { schema1, schema2 }) {
+			schema.createColumn("My Table", "S", "String");
+			Column column = schema.createColumn("My Table", "SS", "Double");
+			column.setKind(DcColumnKind.CALC);
+			column.setDefinitionCalc(new ColumnDefinitionCalc("[S] * 2.0", ExpressionKind.EXP4J));
+
+			Table table = schema.getTable("My Table");
+			for(Object value : new Object[] { "1.5", "abc", null, 2.5 }) {
+				Record record = new Record();
+				record.set("A", value == null ? null : 1.0);
+				record.set("S", value);
+				table.append(record);
+			}
+		}
+		assertSameEvaluation(schema1, schema2);
+	}
+
+	// Partitioned evaluation (of the second schema) gives the same values as the evaluation of the columns (of the first schema)
+	protected void assertSameEvaluation(Schema schema1, Schema schema2) throws Exception {
+		Repository repo = new Repository();
+		repo.setEvaluationPartitionSize(1);
+		try {
+			Account acc = new Account(repo, "test@host.com");
+			repo.addAccount(acc);
+			repo.addSchema(acc, schema2);
+
+			schema1.translate();
+			schema1.evaluate();
+
+			for(String[] name : new String[][] { { "My Table 2", "E" }, { "My Table", "B" }, { "My Table", "C" }, { "My Table", "AA" } }) {
+				assertNotNull(RowEvaluator.create(schema2.getColumn(name[0], name[1]))); // Columns which can be evaluated by partitions
+			}
+			repo.evaluateSchema(acc, schema2, true, true, null); // Columns with other values are evaluated by themselves
+
+			for(String name : new String[] { "My Table", "My Table 2" }) {
+				List<Record> records1 = schema1.getTable(name).read(null);
+				List<Record> records2 = schema2.getTable(name).read(null);
+				assertEquals(records1.size(), records2.size());
+				for(int i = 0; i < records1.size(); i++) {
+					assertEquals(records1.get(i).toJsonMap(), records2.get(i).toJsonMap());
+				}
+			}
+		}
+		finally {
+			repo.parallelEvaluator.stop();
+		}
+	}
+
+}
@@ -1,12 +1,22 @@
 package org.conceptoriented.sc.rest;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -15,6 +25,7 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockHttpSession;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.junit4.SpringRunner;
@@ -24,6 +35,8 @@ import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
 
+import org.conceptoriented.sc.core.*;
+
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, classes=Application.class)
 //@ActiveProfiles("Win")
@@ -32,6 +45,9 @@ public class ScControllerTest {
 	@Autowired
 	private WebApplicationContext ctx;
 
+	@Autowired
+	private Repository repository;
+
 	private MockMvc mockMvc;
 	protected MockHttpSession mockSession;
 	
@@ -42,6 +58,15 @@ public class ScControllerTest {
 		this.mockSession = new MockHttpSession(ctx.getServletContext(), "123456789");
 	}
 
+	// Account of the session (created with the sample schema by the first request)
+	protected Account getAccount() throws Exception {
+		this.mockMvc.perform(get("/api/account").session(mockSession)).andExpect(status().isOk());
+		return repository.getAccountForSession(mockSession);
+	}
+	protected Table getProducts() throws Exception {
+		return repository.getSchemasForAccount(getAccount().getId()).get(0).getTable("Products");
+	}
+
 	@Test
 	public void noParamPing() throws Exception {
 
@@ -61,5 +86,210 @@ public class ScControllerTest {
 		assertEquals("DataCommandr", content);
 	}
 
+	@Test
+	public void metrics() throws Exception {
+
+		MockMvc mvc = MockMvcBuilders.webAppContextSetup(ctx).addFilters(ctx.getBean(MetricsFilter.class)).build();
+		mvc.perform(get("/api/ping").session(mockSession)).andExpect(status().isOk());
+
+		MvcResult result = mvc.perform(get("/api/metrics"))
+				.andExpect(status().isOk())
+				.andReturn();
+
+		String content = result.getResponse().getContentAsString();
+
+		assertTrue(content.contains("# TYPE sc_request_duration_seconds histogram"));
+		assertTrue(content.contains("sc_request_duration_seconds_bucket{method=\"GET\",path=\"/api/ping\",le=\"+Inf\"}"));
+		assertTrue(content.contains("sc_response_size_bytes_sum{method=\"GET\",path=\"/api/ping\"} 12"));
+	}
+
+	@Test
+	public void exportJson() throws Exception {
+
+		Table table = getProducts();
+
+		// Records are read in several chunks
+		repository.setExportChunkSize(2);
+		try {
+			MvcResult result = this.mockMvc.perform(get("/api/tables/" + table.getId() + "/data/json").session(mockSession))
+					.andExpect(request().asyncStarted())
+					.andReturn();
+			this.mockMvc.perform(asyncDispatch(result))
+					.andExpect(status().isOk())
+					.andExpect(jsonPath("$.data.length()").value((int) table.getLength()));
+		}
+		finally {
+			repository.setExportChunkSize(10000);
+		}
+	}
+
+	@Test
+	public void exportCsv() throws Exception {
+
+		Table table = getProducts();
+
+		// Compressed if accepted by the client
+		MvcResult result = this.mockMvc.perform(get("/api/tables/" + table.getId() + "/data/csv?chunkSize=2").session(mockSession).header("Accept-Encoding", "gzip, deflate"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		result = this.mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk())
+				.andExpect(header().string("Content-Encoding", "gzip"))
+				.andReturn();
+
+		byte[] body = result.getResponse().getContentAsByteArray();
+		String csv = org.springframework.util.StreamUtils.copyToString(new GZIPInputStream(new ByteArrayInputStream(body)), StandardCharsets.UTF_8);
+		String[] lines = csv.split("\n");
+		assertEquals(table.getLength() + 1, lines.length); // Header and one line per record
+	}
+
+	@Test
+	public void pageJson() throws Exception {
+
+		Table table = getProducts();
+
+		// First page
+		MvcResult result = this.mockMvc.perform(get("/api/tables/" + table.getId() + "/data/json?limit=2").session(mockSession))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		result = this.mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk())
+				.andExpect(header().string("X-Total-Count", String.valueOf(table.getLength())))
+				.andExpect(jsonPath("$.data.length()").value(2))
+				.andExpect(jsonPath("$.total").value((int) table.getLength()))
+				.andReturn();
+
+		// Remaining records by cursor
+		String cursor = result.getResponse().getHeader("X-Next-Cursor");
+		result = this.mockMvc.perform(get("/api/tables/" + table.getId() + "/data/json?cursor=" + cursor).session(mockSession))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		this.mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk())
+				.andExpect(header().doesNotExist("X-Next-Cursor"))
+				.andExpect(jsonPath("$.data.length()").value((int) table.getLength() - 2));
+	}
+
+	@Test
+	public void projectCsv() throws Exception {
+
+		Table table = getProducts();
+
+		MvcResult result = this.mockMvc.perform(get("/api/tables/" + table.getId() + "/data/csv?columns=ID").session(mockSession))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		result = this.mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk())
+				.andReturn();
+
+		String[] lines = result.getResponse().getContentAsString().split("\n");
+		assertEquals("ID", lines[0]);
+		assertEquals(-1, lines[1].indexOf(',')); // One column
+	}
+
+	@Test
+	public void uploadCsv() throws Exception {
+
+		Table table = getProducts();
+		long length = table.getLength();
+
+		// Header is prepended to each batch
+		repository.setIngestBatchSize(2);
+		try {
+			String body = "{\"hasHeaderRecord\": true}\nID,Name\n101,A\n102,B\n103,C\n104,D\n105,E\n";
+			this.mockMvc.perform(post("/api/tables/" + table.getId() + "/data/csv").session(mockSession).contentType("text/csv").content(body))
+					.andExpect(status().isOk())
+					.andExpect(jsonPath("$.appended").value(5))
+					.andExpect(jsonPath("$.recordsPerSecond").exists());
+		}
+		finally {
+			repository.setIngestBatchSize(10000);
+		}
+
+		assertEquals(length + 5, table.getLength());
+	}
+
+	@Test
+	public void uploadJson() throws Exception {
+
+		Table table = getProducts();
+		long length = table.getLength();
+
+		// Records are appended in batches
+		repository.setIngestBatchSize(2);
+		try {
+			String body = "[{`ID`: 101, `Name`: `A`}, {`ID`: 102, `Name`: `B`}, {`ID`: 103, `Name`: `C`}]".replace('`', '"');
+			this.mockMvc.perform(post("/api/tables/" + table.getId() + "/data/json").session(mockSession).contentType(MediaType.APPLICATION_JSON).content(body))
+					.andExpect(status().isOk())
+					.andExpect(content().string(containsString("\"appended\": 3")))
+					.andExpect(content().string(containsString("\"recordsPerSecond\"")));
+			assertEquals(length + 3, table.getLength());
+
+			// The batch with a bad record is rejected and previous batches are kept
+			body = "[{`ID`: 104}, {`ID`: 105}, {`ID`: 106}, {`ID`: [1]}]".replace('`', '"');
+			this.mockMvc.perform(post("/api/tables/" + table.getId() + "/data/json").session(mockSession).contentType(MediaType.APPLICATION_JSON).content(body))
+					.andExpect(status().isOk())
+					.andExpect(content().string(containsString("Offset: 3, Appended: 2")));
+		}
+		finally {
+			repository.setIngestBatchSize(10000);
+		}
+
+		assertEquals(length + 5, table.getLength());
+	}
+
+	@Test
+	public void uploadQuota() throws Exception {
+
+		Account acc = getAccount();
+		Table table = getProducts();
+		long length = table.getLength();
+
+		repository.setAccountQuota(acc.getFootprint() + 2 * repository.getRecordSize(table)); // Room for two records
+		try {
+			// Upload exceeding the quota is rejected
+			String body = "[{`ID`: 101}, {`ID`: 102}, {`ID`: 103}]".replace('`', '"');
+			this.mockMvc.perform(post("/api/tables/" + table.getId() + "/data/json").session(mockSession).contentType(MediaType.APPLICATION_JSON).content(body))
+					.andExpect(status().isOk())
+					.andExpect(content().string(containsString("Quota exceeded.")));
+			assertEquals(length, table.getLength());
+
+			// Or truncated if configured
+			repository.setQuotaTruncate(true);
+			this.mockMvc.perform(post("/api/tables/" + table.getId() + "/data/json").session(mockSession).contentType(MediaType.APPLICATION_JSON).content(body))
+					.andExpect(status().isOk())
+					.andExpect(jsonPath("$.appended").value(2))
+					.andExpect(jsonPath("$.truncated").value(1));
+			assertEquals(length + 2, table.getLength());
+		}
+		finally {
+			repository.setAccountQuota(0);
+			repository.setQuotaTruncate(false);
+		}
+	}
+
+	@Test
+	public void evaluateAsync() throws Exception {
+
+		Schema schema = repository.getSchemasForAccount(getAccount().getId()).get(0);
+
+		// Request returns the job immediately
+		MvcResult result = this.mockMvc.perform(post("/api/schemas/" + schema.getId() + "/evaluate/async").session(mockSession))
+				.andExpect(status().isAccepted())
+				.andReturn();
+		String jobId = new org.json.JSONObject(result.getResponse().getContentAsString()).getString("id");
+
+		EvaluationJobs.Job job = repository.getEvaluation().getJob(UUID.fromString(jobId));
+		for(int i = 0; i < 500 && !job.isFinished(); i++) {
+			Thread.sleep(10);
+		}
+
+		this.mockMvc.perform(get("/api/evaluate/async/" + jobId + "/status").session(mockSession))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.status").value("DONE"));
+		this.mockMvc.perform(get("/api/evaluate/async/" + jobId + "/result").session(mockSession))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.full").value(true));
+	}
 
 }
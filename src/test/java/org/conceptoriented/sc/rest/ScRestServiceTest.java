@@ -1,11 +1,21 @@
 package org.conceptoriented.sc.rest;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
 
 import org.junit.Before;
 import org.junit.Ignore;
@@ -20,6 +30,7 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpSession;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -29,6 +40,9 @@ import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.web.client.RestTemplate;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+
 import org.conceptoriented.sc.core.*;
 
 @RunWith(SpringRunner.class)
@@ -78,7 +92,6 @@ public class ScRestServiceTest {
 
 		// Add custom jar file to the account
         Asset ass = new Asset();
-        ass.setData(fileData);
         ass.setName(fileName);
 
 		Repository repo = new Repository();
@@ -88,6 +101,7 @@ public class ScRestServiceTest {
         acc = repo.getAccountForName("test@host.com");
         acc.setClassLoader(new UdfClassLoader(acc));
         repo.addAsset(acc, ass);
+        repo.setAssetData(acc, ass, repo.getAssetStore().put(fileData));
 		Schema schema1 = Repository.buildSampleSchema1("My Schema");
 		repo.addSchema(acc, schema1);
 		
@@ -103,6 +117,393 @@ public class ScRestServiceTest {
         column.evaluate();
     }
 
+	@Test
+	public void testAccountIndex() throws Exception {
+
+		Repository repo = new Repository();
+
+		Account acc = new Account(repo, "Test@Host.com");
+		acc.setSession("session-1");
+		repo.addAccount(acc);
+
+		assertEquals(acc, repo.getAccount(acc.getId()));
+		assertEquals(acc, repo.getAccountForName("test@host.com"));
+		assertEquals(acc, repo.getAccountForSession(new MockHttpSession(null, "session-1")));
+
+		// Indexes follow changes of the account properties
+		acc.setSession("session-2");
+		assertNull(repo.getAccountForSession(new MockHttpSession(null, "session-1")));
+		assertEquals(acc, repo.getAccountForSession(new MockHttpSession(null, "session-2")));
+
+		repo.deleteAccount(acc);
+		assertNull(repo.getAccount(acc.getId()));
+		assertNull(repo.getAccountForName("test@host.com"));
+		assertNull(repo.getAccountForSession(new MockHttpSession(null, "session-2")));
+	}
+
+	@Test
+	public void testAccountExpiry() throws Exception {
+
+		Repository repo = new Repository();
+		repo.setAccountTimeout(3600);
+
+		Account acc1 = new Account(repo, "test1@host.com");
+		repo.addAccount(acc1);
+
+		// Not due yet
+		assertEquals(0, repo.expiry.expire());
+		assertEquals(acc1, repo.getAccount(acc1.getId()));
+
+		// Expired accounts are deleted by the expiry pass
+		repo.setAccountTimeout(0);
+		Account acc2 = new Account(repo, "test2@host.com");
+		repo.addAccount(acc2);
+		Thread.sleep(10);
+		assertEquals(1, repo.expiry.expire());
+		assertNull(repo.getAccount(acc2.getId()));
+
+		// Account accessed while the expiry waits for its lock is not expired
+		repo.setAccountTimeout(1);
+		Account acc3 = new Account(repo, "test3@host.com");
+		repo.addAccount(acc3);
+		Thread.sleep(1100);
+		int[] expired = new int[1];
+		Lock lock = repo.writeLock(acc3);
+		Thread thread = new Thread(() -> expired[0] = repo.expiry.expire());
+		try {
+			thread.start();
+			Thread.sleep(100);
+			acc3.setAccessed();
+		}
+		finally {
+			lock.unlock();
+		}
+		thread.join();
+		assertEquals(0, expired[0]);
+		assertNull(acc3.getDeletionTime());
+	}
+
+	@Test
+	public void testElementIndex() throws Exception {
+
+		Repository repo = new Repository();
+		Account acc1 = new Account(repo, "test1@host.com");
+		repo.addAccount(acc1);
+		Account acc2 = new Account(repo, "test2@host.com");
+		repo.addAccount(acc2);
+
+		Schema schema1 = Repository.buildSampleSchema1("My Schema");
+		repo.addSchema(acc1, schema1);
+		Schema schema2 = Repository.buildSampleSchema1("My Schema");
+		repo.addSchema(acc2, schema2);
+
+		// Elements are found only by their own account
+		Table table = schema1.getTable("My Table");
+		Column column = schema1.getColumn("My Table", "A");
+		assertEquals(schema1, repo.getSchema(acc1.getId(), schema1.getId()));
+		assertEquals(table, repo.getTable(acc1.getId(), table.getId()));
+		assertEquals(column, repo.getColumn(acc1.getId(), column.getId()));
+		assertNull(repo.getSchema(acc2.getId(), schema1.getId()));
+		assertNull(repo.getTable(acc2.getId(), table.getId()));
+		assertNull(repo.getColumn(acc2.getId(), column.getId()));
+
+		// A schema id is not a table id and vice versa
+		assertNull(repo.getSchema(acc1.getId(), table.getId()));
+		assertNull(repo.getTable(acc1.getId(), schema1.getId()));
+
+		// Schemas are listed per account
+		assertEquals(Arrays.asList(schema1), repo.getSchemasForAccount(acc1.getId()));
+		assertEquals(Arrays.asList(schema2), repo.getSchemasForAccount(acc2.getId()));
+
+		// Elements created by the schema itself (e.g., by an upload) are found after they are registered
+		Column created = schema2.createColumn("My Table", "Z", "Double");
+		assertNull(repo.getColumn(acc2.getId(), created.getId()));
+		repo.addElements(acc2, schema2);
+		assertEquals(created, repo.getColumn(acc2.getId(), created.getId()));
+
+		// Deleting a schema removes only its own elements
+		int size = repo.elements.size();
+		repo.deleteSchema(schema1);
+		assertEquals(size - 1 - schema1.getTables().size() - schema1.getColumns().size(), repo.elements.size());
+		assertNull(repo.getSchema(acc1.getId(), schema1.getId()));
+		assertNull(repo.getColumn(acc1.getId(), column.getId()));
+		assertEquals(schema2, repo.getSchema(acc2.getId(), schema2.getId()));
+		assertTrue(repo.getSchemasForAccount(acc1.getId()).isEmpty());
+	}
+
+	@Test
+	public void testFootprint() throws Exception {
+
+		Repository repo = new Repository();
+		Account acc = new Account(repo, "test@host.com");
+		repo.addAccount(acc);
+
+		Schema schema = Repository.buildSampleSchema1("My Schema");
+		repo.addSchema(acc, schema);
+		assertEquals(repo.getSchemaSize(schema), acc.getFootprint());
+		assertEquals(3 * 4 * Repository.VALUE_SIZE, repo.getTableSize(schema.getTable("My Table")));
+
+		// Remaining quota
+		repo.setAccountQuota(acc.getFootprint() + 10);
+		assertEquals(10, repo.getQuotaRemaining(acc));
+
+		// Rows appended by link columns during evaluation are counted
+		long size = acc.getFootprint();
+		repo.evaluateSchema(acc, schema, true, false, null);
+		assertTrue(repo.getSchemaSize(schema) > size);
+		assertEquals(repo.getSchemaSize(schema), acc.getFootprint());
+
+		repo.deleteSchema(schema);
+		assertEquals(0, acc.getFootprint());
+	}
+
+	@Test
+	public void testSampleTemplate() throws Exception {
+
+		Repository repo = new Repository();
+
+		// Each copy of the template has its own elements with the same structure and data
+		Schema schema1 = repo.createSampleSchema("Sales");
+		Schema schema2 = repo.createSampleSchema("Sales");
+		assertEquals(1, repo.templates.size());
+
+		assertEquals("Sales", schema2.getName());
+		assertNotEquals(schema1.getId(), schema2.getId());
+		Table table1 = schema1.getTable("Products");
+		Table table2 = schema2.getTable("Products");
+		assertNotEquals(table1.getId(), table2.getId());
+		assertEquals(table1.getLength(), table2.getLength());
+		assertEquals(table2, schema2.getColumn("OrderItems", "Product").getOutput());
+
+		// Changes of one copy are not visible in another copy
+		table1.append(new Record());
+		assertEquals(table1.getLength() - 1, table2.getLength());
+	}
+
+	@Test
+	public void testAcceptsGzip() throws Exception {
+		assertTrue(ScRestService.acceptsGzip("gzip, deflate, br"));
+		assertTrue(ScRestService.acceptsGzip("deflate;q=1.0, GZIP;q=0.5"));
+		assertFalse(ScRestService.acceptsGzip("gzip;q=0"));
+		assertFalse(ScRestService.acceptsGzip("identity"));
+		assertFalse(ScRestService.acceptsGzip(null));
+	}
+
+	@Test
+	public void testCursor() throws Exception {
+		UUID table = UUID.randomUUID();
+		String cursor = ScRestService.encodeCursor(table, 12345);
+		assertEquals(12345, ScRestService.decodeCursor(cursor, table));
+
+		// Cursors of other tables and garbage are rejected
+		try {
+			ScRestService.decodeCursor(cursor, UUID.randomUUID());
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+		try {
+			ScRestService.decodeCursor("not a cursor!", table);
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void testProjection() throws Exception {
+		Record record = new Record();
+		record.set("Name", "Beer \"Pils\"");
+		record.set("Price", 2.5);
+		record.set("Quantity", 10);
+		record.set("Comment", null);
+
+		assertEquals("{\"Price\": 2.5, \"Name\": \"Beer \\\"Pils\\\"\"}", ScRestService.toJson(record, Arrays.asList("Price", "Name")));
+		assertEquals("{\"Quantity\": 10, \"Comment\": null}", ScRestService.toJson(record, Arrays.asList("Quantity", "Comment")));
+	}
+
+	@Test
+	public void testHasHeaderRecord() throws Exception {
+		assertTrue(ScRestService.hasHeaderRecord("{\"hasHeaderRecord\": true}"));
+		assertFalse(ScRestService.hasHeaderRecord("{}"));
+		assertFalse(ScRestService.hasHeaderRecord("not json"));
+	}
+
+	@Test
+	public void testReadRecord() throws Exception {
+		JsonParser parser = ScRestService.JSON_FACTORY.createParser("[{\"A\": 1, \"B\": 2.5, \"C\": \"x\", \"D\": true, \"E\": null}, 5]");
+		parser.nextToken();
+
+		Record record = ScRestService.readRecord(parser);
+		assertEquals(1, record.get("A"));
+		assertEquals(2.5, record.get("B"));
+		assertEquals("x", record.get("C"));
+		assertEquals(true, record.get("D"));
+		assertNull(record.get("E"));
+
+		// Only objects are records
+		try {
+			ScRestService.readRecord(parser);
+			fail();
+		}
+		catch(JsonParseException e) {}
+	}
+
+	@Test
+	public void testChangeTracker() throws Exception {
+
+		Schema schema = Repository.buildSampleSchema1("My Schema");
+		schema.translate();
+
+		// Without a previous state all derived columns are evaluated
+		ChangeTracker.Plan plan = ChangeTracker.plan(schema, null);
+		assertEquals(5, plan.getDirty().size());
+		schema.evaluate();
+
+		// Nothing changed since the last evaluation
+		ChangeTracker tracker = ChangeTracker.capture(schema);
+		assertTrue(ChangeTracker.plan(schema, tracker).getDirty().isEmpty());
+
+		// New rows make the columns of their table and the columns depending on them dirty
+		Record record = new Record();
+		record.set("D", 33.33);
+		schema.getTable("My Table 2").append(record);
+		plan = ChangeTracker.plan(schema, tracker);
+		assertEquals(5, plan.getDirty().size());
+		assertTrue(plan.getDirty().contains(schema.getColumn("My Table 2", "E")));
+		assertTrue(plan.getDirty().contains(schema.getColumn("My Table 2", "GG")));
+		assertTrue(plan.getDirty().contains(schema.getColumn("My Table", "AA")));
+
+		// The link GG can append rows to My Table, so its columns are evaluated after it
+		int link = plan.getDirty().indexOf(schema.getColumn("My Table 2", "GG"));
+		assertTrue(link < plan.getDirty().indexOf(schema.getColumn("My Table", "B")));
+		assertTrue(link < plan.getDirty().indexOf(schema.getColumn("My Table", "C")));
+
+		// Appended rows are evaluated and are not new for the next evaluation
+		for(Column column : plan.getDirty()) {
+			column.evaluate();
+		}
+		tracker = ChangeTracker.capture(schema);
+		assertTrue(ChangeTracker.plan(schema, tracker).getDirty().isEmpty());
+	}
+
+	@Test
+	public void testParallelEvaluation() throws Exception {
+
+		Repository repo = new Repository();
+		Account acc = new Account(repo, "test@host.com");
+		repo.addAccount(acc);
+
+		Schema schema1 = Repository.buildSampleSchema1("My Schema");
+		repo.addSchema(acc, schema1);
+		Schema schema2 = Repository.buildSampleSchema1("My Schema");
+		repo.addSchema(acc, schema2);
+
+		// Independent columns evaluated concurrently produce the same data as sequential evaluation
+		ChangeTracker.Plan plan = repo.evaluateSchema(acc, schema1, true, false, null);
+		assertEquals(5, plan.getDirty().size());
+		repo.evaluateSchema(acc, schema2, true, true, null);
+		for(String name : new String[] { "My Table", "My Table 2" }) {
+			List<Record> records1 = schema1.getTable(name).read(null);
+			List<Record> records2 = schema2.getTable(name).read(null);
+			assertEquals(records1.size(), records2.size());
+			for(int i = 0; i < records1.size(); i++) {
+				assertEquals(records1.get(i).toJsonMap(), records2.get(i).toJsonMap());
+			}
+		}
+		repo.stop();
+	}
+
+	// Table with many rows and independent CALC columns
+	protected static Schema buildWideSchema(String name, int rows, int columns) {
+		Schema schema = new Schema(name);
+		Table table = schema.createTable("Wide");
+		table.setMaxLength(rows);
+		schema.createColumn("Wide", "A", "Double");
+		for(int i = 0; i < columns; i++) {
+			Column c = schema.createColumn("Wide", "C" + i, "Double");
+			c.setKind(DcColumnKind.CALC);
+			c.setDefinitionCalc(new ColumnDefinitionCalc("sqrt([A] * " + (i + 1) + ".0) + sin([A])", ExpressionKind.EXP4J));
+		}
+
+		List<Record> records = new ArrayList<Record>(rows);
+		for(int i = 0; i < rows; i++) {
+			Record r = new Record();
+			r.set("A", (double) i);
+			records.add(r);
+		}
+		table.append(records, null);
+		return schema;
+	}
+
+	@Test
+	public void testParallelPartitions() throws Exception {
+
+		Repository repo = new Repository();
+		repo.setEvaluationPartitionSize(64);
+		Account acc = new Account(repo, "test@host.com");
+		repo.addAccount(acc);
+		try {
+			Schema schema1 = buildWideSchema("Sequential", 1000, 4);
+			repo.addSchema(acc, schema1);
+			Schema schema2 = buildWideSchema("Parallel", 1000, 4);
+			repo.addSchema(acc, schema2);
+
+			repo.evaluateSchema(acc, schema1, true, false, null);
+			repo.evaluateSchema(acc, schema2, true, true, null);
+
+			// Same values independent of the evaluation mode
+			List<Record> records1 = schema1.getTable("Wide").read(null);
+			List<Record> records2 = schema2.getTable("Wide").read(null);
+			assertEquals(1000, records2.size());
+			for(int i = 0; i < records1.size(); i++) {
+				assertEquals(records1.get(i).toJsonMap(), records2.get(i).toJsonMap());
+			}
+		}
+		finally {
+			repo.stop();
+		}
+	}
+
+	@Ignore("Benchmark of parallel evaluation which is too slow for regular builds")
+	@Test
+	public void testParallelSpeedup() throws Exception {
+		System.out.println(">>>>>>>>>>>>>>>>>>>>> testParallelSpeedup");
+
+		Repository repo = new Repository();
+		Account acc = new Account(repo, "test@host.com");
+		repo.addAccount(acc);
+		try {
+			Schema schema1 = buildWideSchema("Sequential", 200000, 8);
+			repo.addSchema(acc, schema1);
+			Schema schema2 = buildWideSchema("Parallel", 200000, 8);
+			repo.addSchema(acc, schema2);
+
+			// Warm up
+			repo.evaluateSchema(acc, schema1, true, false, null);
+			repo.evaluateSchema(acc, schema2, true, true, null);
+
+			long start = System.nanoTime();
+			repo.evaluateSchema(acc, schema1, true, false, null);
+			long sequential = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			repo.evaluateSchema(acc, schema2, true, true, null);
+			long parallel = System.nanoTime() - start;
+
+			System.out.println("Processors: " + Runtime.getRuntime().availableProcessors() + ", Sequential: " + sequential / 1000000 + " ms, Parallel: " + parallel / 1000000 + " ms, Speedup: " + ((double) sequential / parallel));
+
+			// Same values independent of the evaluation mode
+			List<Record> records1 = schema1.getTable("Wide").read(null);
+			List<Record> records2 = schema2.getTable("Wide").read(null);
+			assertEquals(200000, records2.size());
+			for(int i = 0; i < records1.size(); i += 997) {
+				assertEquals(records1.get(i).toJsonMap(), records2.get(i).toJsonMap());
+			}
+		}
+		finally {
+			repo.stop();
+		}
+	}
+
 	@Test
 	public void testRepository() throws Exception {
 